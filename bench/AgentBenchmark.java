@@ -0,0 +1,120 @@
+//
+// AgentBenchmark.java
+//
+// JMH benchmarks for the per-turn hot paths of QLearningAgent
+// - Runs on synthetic battles at 5v5 and 10v10 (the sizes of rl_5fv5f.xml and rl_10fv10f.xml), 50v50 and 200v200
+// - Reports throughput, and allocation rate when run with the gc profiler (main adds it)
+// - Every benchmark that scores actions builds a fresh snapshot, so the QLState feature
+//   matrix starts empty like it does in a real turn; constructState measures that cost alone
+//
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+    private static final int    EPISODE_STEPS   = 10;   // middle steps played by the episode benchmark
+
+    @Param({"5", "10", "50", "200"})
+    public int                  units;                  // number of footmen on each side
+
+    private SyntheticBattle     battle;
+    private QLearningAgent      agent;
+    private List<DamageLog>     damageLogs;             // front lines trade blows, so every middle step is an event
+    private List<DeathLog>      deathLogs;
+    private float[]             features;
+    private QLStatePool         pool;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        battle = new SyntheticBattle(units, 12345L);
+        // play "forever" so terminalStep never exits the benchmark
+        agent = new QLearningAgent(0, new String[] { Integer.toString(Integer.MAX_VALUE), "false" });
+        agent.initialStep(battle.snapshot());
+        damageLogs = battle.damageLogs();
+        deathLogs = new ArrayList<DeathLog>();
+        features = new float[QLState.NUM_FEATURES];
+        pool = new QLStatePool();
+    }
+
+    // every iteration builds a new agent, so drop the MXBean of the last one
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        agent.close();
+    }
+
+    @Benchmark
+    public QLState constructState() {
+        return battle.snapshot();
+    }
+
+    // same as constructState, but refilling a pooled state like the simulator does
+    @Benchmark
+    public int constructStatePooled() {
+        QLState qls = battle.snapshot(pool);
+        int n = qls.getFriendly().size();
+        qls.release();
+        return n;
+    }
+
+    @Benchmark
+    public void getFeatures(Blackhole bh) {
+        QLState qls = battle.snapshot();
+        for(QLUnit f: qls.getFriendly()) {
+            for(QLUnit e: qls.getEnemy()) {
+                qls.getFeatures(f.getID(), e.getID(), features);
+                bh.consume(features);
+            }
+        }
+    }
+
+    @Benchmark
+    public void getQMaxTarget(Blackhole bh) {
+        QLState qls = battle.snapshot();
+        for(QLUnit f: qls.getFriendly())
+            bh.consume(agent.getQMaxTarget(qls, f.getID()));
+    }
+
+    @Benchmark
+    public QLState initialStep() {
+        return agent.initialStep(battle.snapshot());
+    }
+
+    @Benchmark
+    public boolean middleStep() {
+        return agent.middleStep(battle.snapshot(), damageLogs, deathLogs);
+    }
+
+    // a whole episode: initial step, EPISODE_STEPS middle steps and the terminal step
+    @Benchmark
+    public void episode(Blackhole bh) {
+        bh.consume(agent.initialStep(battle.snapshot()));
+        for(int i = 0; i < EPISODE_STEPS; i++)
+            bh.consume(agent.middleStep(battle.snapshot(), damageLogs, deathLogs));
+        agent.terminalStep();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AgentBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
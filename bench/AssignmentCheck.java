@@ -0,0 +1,165 @@
+//
+// AssignmentCheck.java
+//
+// Checks TargetAssigner against a brute-force solve on many small random battles
+// - Every battle is solved cold, then re-solved warm from its own targets, once unchanged and once after
+//   a small HP change, as the agent does from one step to the next
+// - Some footmen already have a target, like exploring ones, and use up slots of the cap
+// - An assignment fails if its total Q score is more than bidders * eps below the best one, or if an
+//   enemy gets more attackers than the cap the assigner had to raise to
+// - Prints the number of failures and exits with status 1 if there are any
+//
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AssignmentCheck {
+
+    private static final int    ATTACKERS       = 4;    // index of the number of attackers feature
+    private static final int    EXTENT          = 8;    // width and height of the map
+    private static final int    MAX_HP          = 60;
+    private static final float  EXPLORE         = 0.3f; // chance that a footman already has a target
+
+    private Random              rng;
+    private int                 checked;
+    private int                 failed;
+
+    public AssignmentCheck(long seed) {
+        rng = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        int battles = 3000;
+        long seed = 12345L;
+        try {
+            if(args.length > 0) battles = Integer.parseInt(args[0]);
+            if(args.length > 1) seed = Long.parseLong(args[1]);
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            printUsage();
+        }
+        if(battles < 1) printUsage();
+
+        AssignmentCheck check = new AssignmentCheck(seed);
+        for(int i = 0; i < battles; i++) check.runBattle();
+        System.out.printf("%d assignments checked, %d failed\n", check.checked, check.failed);
+        System.exit(check.failed == 0 ? 0 : 1);
+    }
+
+    // solves one random battle cold and twice warm
+    private void runBattle() {
+        int numF = 1 + rng.nextInt(5);
+        int numE = 1 + rng.nextInt(3);
+        int cap = 1 + rng.nextInt(3);
+        float[] weights = new float[QLState.NUM_FEATURES];
+        for(int i = 0; i < weights.length; i++) weights[i] = 2 * rng.nextFloat() - 1;
+
+        int[] hp = new int[numF + numE];
+        int[] x = new int[numF + numE];
+        int[] y = new int[numF + numE];
+        for(int i = 0; i < hp.length; i++) {
+            hp[i] = 1 + rng.nextInt(MAX_HP);
+            x[i] = rng.nextInt(EXTENT);
+            y[i] = rng.nextInt(EXTENT);
+        }
+
+        TargetAssigner assigner = new TargetAssigner(cap);
+        QLState cold = solve(assigner, weights, numF, numE, cap, hp, x, y, null);
+        solve(assigner, weights, numF, numE, cap, hp, x, y, cold);
+
+        int changed = rng.nextInt(hp.length);
+        hp[changed] = Math.max(1, hp[changed] - 1 - rng.nextInt(6));
+        solve(assigner, weights, numF, numE, cap, hp, x, y, cold);
+    }
+
+    // builds the battle, lets some footmen explore, assigns the rest and compares with brute force
+    private QLState solve(TargetAssigner assigner, float[] weights, int numF, int numE, int cap,
+                          int[] hp, int[] x, int[] y, QLState last) {
+        QLState qls = new QLState();
+        qls.clear(EXTENT, EXTENT);
+        for(int i = 0; i < numF; i++) qls.addFriendly(i, hp[i], x[i], y[i]);
+        for(int i = 0; i < numE; i++) qls.addEnemy(numF + i, hp[numF + i], x[numF + i], y[numF + i]);
+        qls.build();
+
+        for(int f = 0; f < numF; f++)
+            if(rng.nextFloat() < EXPLORE) qls.setTarget(f, numF + rng.nextInt(numE));
+
+        // scores and attackers before the assignment, the attackers feature left out of the scores
+        List<Integer> bidders = new ArrayList<Integer>();
+        for(int f = 0; f < numF; f++)
+            if(qls.getTargetFor(f) < 0) bidders.add(f);
+        int[] offset = new int[numE];
+        for(int e = 0; e < numE; e++) offset[e] = qls.getNumAttackersFor(numF + e);
+        float[][] base = new float[numF][numE];
+        float[] features = new float[QLState.NUM_FEATURES];
+        for(int f = 0; f < numF; f++) {
+            for(int e = 0; e < numE; e++) {
+                qls.getFeatures(f, numF + e, features);
+                features[ATTACKERS] = 0f;
+                for(int i = 0; i < features.length; i++) base[f][e] += weights[i] * features[i];
+            }
+        }
+
+        // the assigner raises the cap until every bidder fits
+        int slots = cap;
+        while(countFree(offset, slots) < bidders.size()) slots++;
+
+        boolean inTime = assigner.assign(qls, weights, last, 0L);
+        int[] choice = new int[bidders.size()];
+        for(int b = 0; b < choice.length; b++) choice[b] = qls.getTargetFor(bidders.get(b)) - numF;
+
+        float w4 = weights[ATTACKERS];
+        float best = bestScore(base, bidders, offset, slots, w4, new int[bidders.size()], 0);
+        float score = score(base, bidders, offset, slots, w4, choice);
+        float bound = bidders.size() * assigner.getEpsilon() + 1e-3f * (1f + Math.abs(best));
+
+        checked++;
+        if(!inTime || score < best - bound) {
+            failed++;
+            System.out.printf("F=%d E=%d cap=%d warm=%b: score %.4f, best %.4f, bound %.4f\n",
+                    numF, numE, cap, last != null, score, best, bound);
+        }
+        return qls;
+    }
+
+    // best total score over every way of giving the bidders from b on a target
+    private float bestScore(float[][] base, List<Integer> bidders, int[] offset, int slots, float w4,
+                            int[] choice, int b) {
+        if(b == choice.length) return score(base, bidders, offset, slots, w4, choice);
+        float best = Float.NEGATIVE_INFINITY;
+        for(int e = 0; e < offset.length; e++) {
+            choice[b] = e;
+            best = Math.max(best, bestScore(base, bidders, offset, slots, w4, choice, b + 1));
+        }
+        return best;
+    }
+
+    // total score of the bidders attacking choice[b], each enemy worth w4 more per attacker ahead;
+    // minus infinity if a bidder is left without a target or an enemy gets more attackers than slots
+    private float score(float[][] base, List<Integer> bidders, int[] offset, int slots, float w4, int[] choice) {
+        int[] count = new int[offset.length];
+        float total = 0f;
+        for(int b = 0; b < choice.length; b++) {
+            int e = choice[b];
+            if(e < 0 || e >= offset.length) return Float.NEGATIVE_INFINITY;
+            total += base[bidders.get(b)][e] + w4 * (offset[e] + count[e]);
+            count[e]++;
+        }
+        for(int e = 0; e < offset.length; e++)
+            if(count[e] > 0 && offset[e] + count[e] > slots) return Float.NEGATIVE_INFINITY;
+        return total;
+    }
+
+    // number of free slots over all enemies if each allows slots attackers
+    private static int countFree(int[] offset, int slots) {
+        int total = 0;
+        for(int e: offset) total += Math.max(0, slots - e);
+        return total;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java AssignmentCheck [battles] [seed]");
+        System.exit(0);
+    }
+}
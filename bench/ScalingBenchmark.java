@@ -0,0 +1,110 @@
+//
+// ScalingBenchmark.java
+//
+// Measures how QLearningAgent keeps up as battles grow, using generated maps and the CombatSimulator
+// - For every army size N, writes an N vs N map with ScenarioGenerator and trains a fresh agent on it
+// - Reports per-turn decision latency (mean, p50, p99 and max of middleStep), peak heap and episodes/sec
+// - Prints a table, and appends CSV rows to a file if one is given
+//
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import java.util.Random;
+
+public class ScalingBenchmark {
+
+    private static final String CSV_HEADER  = "units,formation,x_extent,y_extent,episodes,turns,episodes_per_sec,"
+            + "middle_mean_us,middle_p50_us,middle_p99_us,middle_max_us,peak_heap_mb,allocated_bytes\n";
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) printUsage();
+
+        String[] sizes = args[0].split(",");
+        int episodes = 30;
+        String formation = "line";
+        File csv = null;
+        try {
+            if(args.length > 1) episodes = Integer.parseInt(args[1]);
+            if(args.length > 2) formation = args[2];
+            if(args.length > 3) csv = new File(args[3]);
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            printUsage();
+        }
+        if(episodes < 1) printUsage();
+        File template = new File(args.length > 4 ? args[4] : ScenarioGenerator.DEFAULT_TEMPLATE);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%7s %9s %8s %10s %10s %10s %10s %10s %9s\n", "units", "map", "turns", "eps/sec",
+                "mean(us)", "p50(us)", "p99(us)", "max(us)", "heap(MB)");
+        for(String size: sizes) {
+            int n = 0;
+            try {
+                n = Integer.parseInt(size.trim());
+            } catch(NumberFormatException e) {
+                e.printStackTrace();
+                printUsage();
+            }
+
+            File map = File.createTempFile("scaling-" + n + "v" + n + "-", ".xml");
+            map.deleteOnExit();
+            ScenarioGenerator gen = new ScenarioGenerator(n, n, formation, 0, 0, 12345L);
+            gen.write(template, map);
+
+            // episodes counts training episodes, like the agent's own argument
+            CombatSimulator sim = new CombatSimulator(map.getPath());
+            QLConfig config = new QLConfig();
+            config.episodes = episodes;
+            config.quiet = true;
+            QLearningAgent agent = new QLearningAgent(0, config, new Random(12345L));
+
+            System.gc();
+            long peakHeap = memory.getHeapMemoryUsage().getUsed();
+            long start = System.nanoTime();
+            int played = 0;
+            long turns = 0;
+            while(!agent.isFinished()) {
+                turns += sim.runEpisode(agent);
+                played++;
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            agent.close();
+
+            AgentMetrics m = agent.getMetrics();
+            double peakMB = peakHeap / (1024.0 * 1024.0);
+            System.out.printf(Locale.ROOT, "%7d %9s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %9.1f\n", n,
+                    gen.getXExtent() + "x" + gen.getYExtent(), turns, played / seconds, m.getMiddleStepMeanMicros(),
+                    m.getMiddleStepP50Micros(), m.getMiddleStepP99Micros(), m.getMiddleStepMaxMicros(), peakMB);
+
+            if(csv != null) {
+                boolean header = !csv.exists() || csv.length() == 0;
+                Writer out = new FileWriter(csv, true);
+                try {
+                    if(header) out.write(CSV_HEADER);
+                    out.write(String.format(Locale.ROOT, "%d,%s,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d\n", n, formation,
+                            gen.getXExtent(), gen.getYExtent(), played, turns, played / seconds,
+                            m.getMiddleStepMeanMicros(), m.getMiddleStepP50Micros(), m.getMiddleStepP99Micros(),
+                            m.getMiddleStepMaxMicros(), peakMB, m.getAllocatedBytes()));
+                } finally {
+                    out.close();
+                }
+            }
+            map.delete();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: ScalingBenchmark [sizes] [eps] [formation] [csv] [template]");
+        System.out.println("\tsizes: comma separated army sizes to play N vs N, e.g. 5,10,50,200");
+        System.out.println("\teps: training episodes per size (must be > 0, default: 30)");
+        System.out.println("\tformation: line, block or scatter (default: line)");
+        System.out.println("\tcsv: file to append results to, optional");
+        System.out.println("\ttemplate: map to copy players and templates from (default: " + ScenarioGenerator.DEFAULT_TEMPLATE + ")");
+        System.exit(1);
+    }
+}
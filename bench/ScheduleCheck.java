@@ -0,0 +1,61 @@
+//
+// ScheduleCheck.java
+//
+// Checks that TrainingSchedule keeps its evaluation buffer at evaluationEps over a long run
+// - Drives several train / evaluate cycles, in fixed and in adaptive mode, the way QLearningAgent does
+// - Fails if the reward buffer ever grows past evaluationEps, or a block asks for more episodes than that
+// - Prints the number of failures and exits with status 1 if there are any
+//
+
+import java.util.Random;
+
+public class ScheduleCheck {
+
+    private static final int    TRAINING_EPS    = 10;
+    private static final int    EVALUATION_EPS  = 5;
+
+    public static void main(String[] args) {
+        int cycles = 1000;
+        try {
+            if(args.length > 0) cycles = Integer.parseInt(args[0]);
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            printUsage();
+        }
+        if(cycles < 1) printUsage();
+
+        int failed = run(false, cycles) + run(true, cycles);
+        System.out.printf("%d cycles checked in each mode, %d failed\n", cycles, failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    // returns the number of cycles after which the buffer had grown
+    private static int run(boolean adaptive, int cycles) {
+        TrainingSchedule schedule = new TrainingSchedule(adaptive, 0.02f, 0.0001f, TRAINING_EPS, EVALUATION_EPS);
+        Random rng = new Random(12345L);
+        float[] weights = new float[QLState.NUM_FEATURES];
+        for(int i = 0; i < weights.length; i++) weights[i] = 2 * rng.nextFloat() - 1;
+
+        int failed = 0;
+        schedule.startTraining(weights);
+        for(int c = 0; c < cycles; c++) {
+            for(int i = 0; i < weights.length; i++) weights[i] += 0.01f * (rng.nextFloat() - 0.5f);
+            int eps = schedule.endTraining(weights);
+            for(int e = 0; e < eps; e++) schedule.recordEvaluation(-1000f + 100f * rng.nextFloat());
+            if(eps > 0) schedule.endEvaluation();
+            schedule.startTraining(weights);
+
+            if(eps > EVALUATION_EPS || schedule.getRewardCapacity() != EVALUATION_EPS) {
+                failed++;
+                System.out.printf("adaptive=%b cycle %d: block of %d, buffer of %d\n", adaptive, c, eps,
+                        schedule.getRewardCapacity());
+            }
+        }
+        return failed;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java ScheduleCheck [cycles]");
+        System.exit(0);
+    }
+}
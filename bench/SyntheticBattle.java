@@ -0,0 +1,88 @@
+//
+// SyntheticBattle.java
+//
+// Builds synthetic N vs N footman battles for benchmarking without a running SEPIA game
+// - Friendly footmen stand in columns on the left, enemy footmen in columns on the right
+// - The two front lines are adjacent so the neighbor features are exercised
+// - Small armies use the 25x19 extent of the rl_*.xml maps, larger ones grow the map
+//
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SyntheticBattle {
+
+    private static final int    MIN_X_EXTENT    = 25;   // extent of rl_5fv5f.xml and rl_10fv10f.xml
+    private static final int    MIN_Y_EXTENT    = 19;
+    private static final int    MAX_HP          = 60;   // footman base health
+    private static final int    DAMAGE          = 6;    // damage dealt by each front line attack
+
+    private int                 xExtent;
+    private int                 yExtent;
+    private int                 size;                   // number of footmen on each side
+    private int                 rows;                   // number of footmen in each column
+    private int[]               hp;                     // hp of every unit, friendly first
+
+    public SyntheticBattle(int size, long seed) {
+        this.size = size;
+
+        // footmen stand on every other row, like in the hand-written maps
+        rows = Math.max(8, (int) Math.ceil(Math.sqrt(2 * size)));
+        int columns = (size + rows - 1) / rows;
+        xExtent = Math.max(MIN_X_EXTENT, 2 * columns + 4);
+        yExtent = Math.max(MIN_Y_EXTENT, 2 * rows + 1);
+
+        Random rng = new Random(seed);
+        hp = new int[2 * size];
+        for(int i = 0; i < hp.length; i++)
+            hp[i] = 1 + rng.nextInt(MAX_HP);
+    }
+
+    public int getSize() { return size; }
+
+    // returns a fresh snapshot of the battle, as QLearningAgent would build from a StateView
+    public QLState snapshot() {
+        QLState qls = new QLState();
+        fill(qls);
+        return qls;
+    }
+
+    // returns a snapshot of the battle in a state taken from pool instead of a new one
+    public QLState snapshot(QLStatePool pool) {
+        QLState qls = pool.acquire(xExtent, yExtent);
+        fill(qls);
+        return qls;
+    }
+
+    private void fill(QLState qls) {
+        qls.clear(xExtent, yExtent);
+        for(int i = 0; i < size; i++) {
+            qls.addFriendly(i, hp[i], getX(i, true), getY(i));
+            qls.addEnemy(size + i, hp[size + i], getX(i, false), getY(i));
+        }
+        qls.build();
+    }
+
+    // returns damage logs for one round of front line attacks in both directions
+    public List<DamageLog> damageLogs() {
+        List<DamageLog> logs = new ArrayList<DamageLog>();
+        for(int i = 0; i < Math.min(rows, size); i++) {
+            logs.add(new DamageLog(i, 0, size + i, 1, DAMAGE));
+            logs.add(new DamageLog(size + i, 1, i, 0, DAMAGE));
+        }
+        return logs;
+    }
+
+    // column i / rows counts back from the front line on each side
+    private int getX(int i, boolean friendly) {
+        int front = xExtent / 2;
+        return friendly ? front - 1 - i / rows : front + i / rows;
+    }
+
+    private int getY(int i) {
+        return 1 + 2 * (i % rows);
+    }
+}
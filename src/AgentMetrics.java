@@ -0,0 +1,183 @@
+//
+// AgentMetrics.java
+//
+// Performance metrics recorded by a QLearningAgent
+// - Latency histograms for initialStep and middleStep, counts of Q evaluations and weight updates;
+//   under SEPIA a step runs from the callback to the returned actions, snapshot included
+// - Number of middle steps that ran out of their time budget before scoring every footman or
+//   finishing the joint target assignment
+// - Episodes per second since the agent started
+// - Bytes allocated by the agent's own steps, and JVM-wide GC counts and time
+// - Registered as an MXBean until unregistered, and dumped to a CSV file, or JSON lines if the file ends in .json
+//
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    private static final AtomicInteger  instances   = new AtomicInteger();
+
+    private static final String         CSV_HEADER  = "time_ms,episodes,episodes_per_sec,q_evals,weight_updates,"
+            + "initial_count,initial_mean_us,initial_p99_us,middle_count,middle_mean_us,middle_p50_us,"
+            + "middle_p99_us,middle_max_us,deadline_misses,allocated_bytes,gc_count,gc_time_ms\n";
+
+    private LatencyHistogram    initialStep;
+    private LatencyHistogram    middleStep;
+    private long                episodes;
+    private long                qEvaluations;
+    private long                weightUpdates;
+    private long                deadlineMisses;         // middle steps that hit their deadline
+    private long                allocatedBytes;         // bytes allocated by the agent thread inside its steps
+    private long                startTime;              // nanoTime the agent was created
+    private long                startAllocated;         // thread allocation when the current step started
+    private ObjectName          name;                   // name registered with the MBean server, null if not registered
+
+    private com.sun.management.ThreadMXBean threads;    // null if the JVM cannot measure allocation
+
+    public AgentMetrics() {
+        initialStep = new LatencyHistogram();
+        middleStep = new LatencyHistogram();
+        startTime = System.nanoTime();
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+            threads = (com.sun.management.ThreadMXBean) bean;
+    }
+
+    // registers with the platform MBean server as QLearningAgent:type=AgentMetrics,name=agent-N
+    public void register() {
+        try {
+            ObjectName name = new ObjectName("QLearningAgent:type=AgentMetrics,name=agent-" + instances.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.name = name;
+        } catch(Exception e) {                          // metrics are optional, keep playing
+            e.printStackTrace();
+        }
+    }
+
+    // removes the MXBean registered by register, if any
+    public void unregister() {
+        if(name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    // marks the start of a step, returns the time to pass to the matching end call
+    public long startStep() {
+        if(threads != null) startAllocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        return System.nanoTime();
+    }
+
+    public void endInitialStep(long start) {
+        initialStep.record(System.nanoTime() - start);
+        endStep();
+    }
+
+    public void endMiddleStep(long start) {
+        middleStep.record(System.nanoTime() - start);
+        endStep();
+    }
+
+    private void endStep() {
+        if(threads != null) allocatedBytes += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startAllocated;
+    }
+
+    public void countQEvaluations(int n) { qEvaluations += n; }
+
+    public void countWeightUpdate() { weightUpdates++; }
+
+    public void countEpisode() { episodes++; }
+
+    public void countDeadlineMiss() { deadlineMisses++; }
+
+    // appends the current metrics to file as a CSV row, or a JSON line if the file ends in .json
+    public void dump(File file) throws IOException {
+        boolean json = file.getName().endsWith(".json");
+        boolean header = !json && (!file.exists() || file.length() == 0);
+        Writer out = new FileWriter(file, true);
+        try {
+            if(header) out.write(CSV_HEADER);
+            long time = System.currentTimeMillis();
+            if(json) {
+                out.write(String.format(Locale.ROOT, "{\"time_ms\":%d,\"episodes\":%d,\"episodes_per_sec\":%.3f,\"q_evals\":%d,"
+                        + "\"weight_updates\":%d,\"initial_count\":%d,\"initial_mean_us\":%.3f,\"initial_p99_us\":%.3f,"
+                        + "\"middle_count\":%d,\"middle_mean_us\":%.3f,\"middle_p50_us\":%.3f,\"middle_p99_us\":%.3f,"
+                        + "\"middle_max_us\":%.3f,\"deadline_misses\":%d,\"allocated_bytes\":%d,\"gc_count\":%d,\"gc_time_ms\":%d}\n",
+                        time, getEpisodes(), getEpisodesPerSecond(), getQEvaluations(), getWeightUpdates(),
+                        getInitialStepCount(), getInitialStepMeanMicros(), getInitialStepP99Micros(),
+                        getMiddleStepCount(), getMiddleStepMeanMicros(), getMiddleStepP50Micros(),
+                        getMiddleStepP99Micros(), getMiddleStepMaxMicros(), getDeadlineMisses(), getAllocatedBytes(),
+                        getGcCount(), getGcTimeMillis()));
+            } else {
+                out.write(String.format(Locale.ROOT, "%d,%d,%.3f,%d,%d,%d,%.3f,%.3f,%d,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d\n",
+                        time, getEpisodes(), getEpisodesPerSecond(), getQEvaluations(), getWeightUpdates(),
+                        getInitialStepCount(), getInitialStepMeanMicros(), getInitialStepP99Micros(),
+                        getMiddleStepCount(), getMiddleStepMeanMicros(), getMiddleStepP50Micros(),
+                        getMiddleStepP99Micros(), getMiddleStepMaxMicros(), getDeadlineMisses(), getAllocatedBytes(),
+                        getGcCount(), getGcTimeMillis()));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public long getEpisodes() { return episodes; }
+
+    public double getEpisodesPerSecond() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? episodes / seconds : 0;
+    }
+
+    public long getQEvaluations() { return qEvaluations; }
+
+    public long getWeightUpdates() { return weightUpdates; }
+
+    public long getInitialStepCount() { return initialStep.getCount(); }
+
+    public double getInitialStepMeanMicros() { return initialStep.getMean() / 1e3; }
+
+    public double getInitialStepP99Micros() { return initialStep.getPercentile(99) / 1e3; }
+
+    public long getMiddleStepCount() { return middleStep.getCount(); }
+
+    public double getMiddleStepMeanMicros() { return middleStep.getMean() / 1e3; }
+
+    public double getMiddleStepP50Micros() { return middleStep.getPercentile(50) / 1e3; }
+
+    public double getMiddleStepP99Micros() { return middleStep.getPercentile(99) / 1e3; }
+
+    public double getMiddleStepMaxMicros() { return middleStep.getMax() / 1e3; }
+
+    public long getDeadlineMisses() { return deadlineMisses; }
+
+    public long getAllocatedBytes() { return allocatedBytes; }
+
+    public long getGcCount() {
+        long total = 0;
+        for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionCount());
+        return total;
+    }
+
+    public long getGcTimeMillis() {
+        long total = 0;
+        for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+}
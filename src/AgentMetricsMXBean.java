@@ -0,0 +1,41 @@
+//
+// AgentMetricsMXBean.java
+//
+// JMX view of the performance metrics recorded by a QLearningAgent
+// Latencies are reported in microseconds
+//
+
+public interface AgentMetricsMXBean {
+
+    long getEpisodes();
+
+    double getEpisodesPerSecond();
+
+    long getQEvaluations();
+
+    long getWeightUpdates();
+
+    long getInitialStepCount();
+
+    double getInitialStepMeanMicros();
+
+    double getInitialStepP99Micros();
+
+    long getMiddleStepCount();
+
+    double getMiddleStepMeanMicros();
+
+    double getMiddleStepP50Micros();
+
+    double getMiddleStepP99Micros();
+
+    double getMiddleStepMaxMicros();
+
+    long getDeadlineMisses();
+
+    long getAllocatedBytes();
+
+    long getGcCount();
+
+    long getGcTimeMillis();
+}
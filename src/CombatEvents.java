@@ -0,0 +1,87 @@
+//
+// CombatEvents.java
+//
+// Index of one step's combat history, keyed by unit id
+// - Built once per step from the step's Damage and Death logs
+// - Answers damage dealt, damage taken and death of any unit in O(1)
+// - Reused from step to step: only the entries touched by the last step are cleared
+//
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CombatEvents {
+
+    private int[]               dealt;                  // damage dealt by each unit id
+    private int[]               taken;                  // damage taken by each unit id
+    private boolean[]           dead;                   // whether each unit id died
+    private int[]               touched;                // ids with an entry this step
+    private int                 numTouched;
+    private boolean             friendlyDamaged;        // a unit of player 0 took damage
+    private boolean             enemyDied;              // a unit of player 1 died
+
+    public CombatEvents() {
+        dealt = new int[0];
+        taken = new int[0];
+        dead = new boolean[0];
+        touched = new int[0];
+        numTouched = 0;
+    }
+
+    // rebuilds the index from the logs of one step
+    public void update(List<DamageLog> damageLogs, List<DeathLog> deathLogs) {
+        for(int i = 0; i < numTouched; i++) {           // clear the last step
+            int id = touched[i];
+            dealt[id] = 0;
+            taken[id] = 0;
+            dead[id] = false;
+        }
+        numTouched = 0;
+        friendlyDamaged = false;
+        enemyDied = false;
+
+        for(int i = 0; i < damageLogs.size(); i++) {
+            DamageLog log = damageLogs.get(i);
+            touch(log.getAttackerID());
+            touch(log.getDefenderID());
+            dealt[log.getAttackerID()] += log.getDamage();
+            taken[log.getDefenderID()] += log.getDamage();
+            if(log.getDefenderController() == 0) friendlyDamaged = true;
+        }
+
+        for(int i = 0; i < deathLogs.size(); i++) {
+            DeathLog log = deathLogs.get(i);
+            touch(log.getDeadUnitID());
+            dead[log.getDeadUnitID()] = true;
+            if(log.getController() == 1) enemyDied = true;
+        }
+    }
+
+    // true if any friendly units took damage or enemies died, the points at which targets are reallocated
+    public boolean isEventPoint() { return friendlyDamaged || enemyDied; }
+
+    // ids outside the index, including -1 for "no target", have no events
+
+    public int getDamageDealt(int id) { return id >= 0 && id < dealt.length ? dealt[id] : 0; }
+
+    public int getDamageTaken(int id) { return id >= 0 && id < taken.length ? taken[id] : 0; }
+
+    public boolean died(int id) { return id >= 0 && id < dead.length && dead[id]; }
+
+    // makes room for unit id and remembers to clear it on the next update
+    private void touch(int id) {
+        if(id >= dealt.length) {
+            int size = Math.max(id + 1, 2 * dealt.length);
+            dealt = Arrays.copyOf(dealt, size);
+            taken = Arrays.copyOf(taken, size);
+            dead = Arrays.copyOf(dead, size);
+        }
+        if(dealt[id] == 0 && taken[id] == 0 && !dead[id]) {
+            if(numTouched == touched.length) touched = Arrays.copyOf(touched, Math.max(16, 2 * numTouched));
+            touched[numTouched++] = id;
+        }
+    }
+}
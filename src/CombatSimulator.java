@@ -0,0 +1,320 @@
+//
+// CombatSimulator.java
+//
+// Lightweight, deterministic, in-process footman combat simulator for fast training
+// - Loads unit positions, HP and templates from the same rl_*.xml maps SEPIA uses
+// - Models COMPOUNDATTACK: a footman steps towards its target until in range, then attacks it
+// - Enemy footmen attack the nearest friendly footman, retargeting when their target dies
+// - Drives QLearningAgent through initialStep / middleStep / terminalStep with Damage and Death logs
+//
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CombatSimulator {
+
+    private static final int    TURN_LIMIT      = 1000;     // end an episode that has not been decided by then
+
+    // map, loaded once
+    private int                 xExtent;
+    private int                 yExtent;
+    private int                 numUnits;
+    private int[]               ids;                        // unit ids, in map order
+    private int[]               players;                    // controlling player of each unit
+    private int[]               startHP;
+    private int[]               startX;
+    private int[]               startY;
+    private int[]               attack;                     // template stats of each unit
+    private int[]               piercing;
+    private int[]               armor;
+    private int[]               range;
+
+    // episode state, reset before each episode
+    private int[]               hp;
+    private int[]               x;
+    private int[]               y;
+    private int[]               target;                     // index of the unit each unit attacks, -1 if idle
+    private int[]               grid;                       // index + 1 of the unit on each tile, 0 if empty
+    private int[]               taken;                      // damage taken by each unit this turn
+    private int                 turn;
+
+    // combat logs of the last turn
+    private List<DamageLog>     damageLogs;
+    private List<DeathLog>      deathLogs;
+    private QLStatePool         states;                     // snapshots handed to the agent, refilled each turn
+
+    public CombatSimulator(String mapFile) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(mapFile));
+        Element root = doc.getDocumentElement();
+        xExtent = Integer.parseInt(root.getAttribute("xExtent"));
+        yExtent = Integer.parseInt(root.getAttribute("yExtent"));
+
+        // templates are referenced by id across players, so collect all of them first
+        Map<Integer, Element> templates = new HashMap<Integer, Element>();
+        List<Element> units = new ArrayList<Element>();
+        List<Integer> owners = new ArrayList<Integer>();
+        for(Element player: children(root, "player")) {
+            int playerID = getInt(player, "ID");
+            for(Element t: children(player, "template")) templates.put(getInt(t, "ID"), t);
+            for(Element u: children(player, "unit")) {
+                units.add(u);
+                owners.add(playerID);
+            }
+        }
+
+        numUnits = units.size();
+        ids = new int[numUnits];
+        players = new int[numUnits];
+        startHP = new int[numUnits];
+        startX = new int[numUnits];
+        startY = new int[numUnits];
+        attack = new int[numUnits];
+        piercing = new int[numUnits];
+        armor = new int[numUnits];
+        range = new int[numUnits];
+        for(int i = 0; i < numUnits; i++) {
+            Element u = units.get(i);
+            Element t = templates.get(getInt(u, "templateID"));
+            ids[i] = getInt(u, "ID");
+            players[i] = owners.get(i);
+            startHP[i] = getInt(u, "currentHealth");
+            startX[i] = getInt(u, "xPosition");
+            startY[i] = getInt(u, "yPosition");
+            attack[i] = getInt(t, "baseAttack");
+            piercing[i] = getInt(t, "piercingAttack");
+            armor[i] = getInt(t, "armor");
+            range[i] = getInt(t, "range");
+        }
+
+        hp = new int[numUnits];
+        x = new int[numUnits];
+        y = new int[numUnits];
+        target = new int[numUnits];
+        grid = new int[xExtent * yExtent];
+        taken = new int[numUnits];
+        damageLogs = new ArrayList<DamageLog>();
+        deathLogs = new ArrayList<DeathLog>();
+        states = new QLStatePool();
+    }
+
+    // plays one episode with the agent controlling player 0, returns the number of turns played
+    public int runEpisode(QLearningAgent agent) {
+        reset();
+
+        QLState qls = agent.initialStep(snapshot());
+        issueOrders(qls);
+
+        while(turn < TURN_LIMIT) {
+            step();
+            if(!isAlive(0) || !isAlive(1)) break;       // SEPIA goes straight to the terminal step
+
+            QLState last = qls;
+            qls = snapshot();
+            if(agent.middleStep(qls, damageLogs, deathLogs))
+                issueOrders(qls);                       // targets were reallocated
+            last.release();                             // the agent only keeps qls from now on
+        }
+
+        agent.terminalStep();
+        qls.release();
+        return turn;
+    }
+
+    // restores the map's starting state
+    private void reset() {
+        turn = 0;
+        Arrays.fill(grid, 0);
+        for(int i = 0; i < numUnits; i++) {
+            hp[i] = startHP[i];
+            x[i] = startX[i];
+            y[i] = startY[i];
+            target[i] = -1;
+            grid[cell(x[i], y[i])] = i + 1;
+        }
+        damageLogs.clear();
+        deathLogs.clear();
+    }
+
+    // plays one turn: all attacks land simultaneously, then units out of range move in map order
+    private void step() {
+        damageLogs.clear();
+        deathLogs.clear();
+        turn++;
+
+        // enemy footmen go after the nearest friendly footman
+        for(int i = 0; i < numUnits; i++)
+            if(players[i] == 1 && hp[i] > 0 && (target[i] < 0 || hp[target[i]] <= 0))
+                target[i] = nearest(i, 0);
+
+        Arrays.fill(taken, 0);
+        for(int i = 0; i < numUnits; i++) {
+            int t = target[i];
+            if(hp[i] <= 0 || t < 0 || hp[t] <= 0 || !inRange(i, t)) continue;
+            int d = Math.max(0, attack[i] - armor[t]) + piercing[i];
+            taken[t] += d;
+            damageLogs.add(new DamageLog(ids[i], players[i], ids[t], players[t], d));
+        }
+
+        for(int i = 0; i < numUnits; i++) {
+            if(taken[i] == 0) continue;
+            hp[i] -= taken[i];
+            if(hp[i] <= 0) {
+                grid[cell(x[i], y[i])] = 0;
+                deathLogs.add(new DeathLog(ids[i], players[i]));
+            }
+        }
+
+        for(int i = 0; i < numUnits; i++) {
+            int t = target[i];
+            if(hp[i] <= 0 || t < 0 || hp[t] <= 0 || inRange(i, t)) continue;
+            moveTowards(i, t);
+        }
+    }
+
+    // moves unit i one tile to the free neighbor closest to unit t, if that gets it closer
+    private void moveTowards(int i, int t) {
+        int bestX = x[i];
+        int bestY = y[i];
+        int bestDist = distanceSq(x[i], y[i], x[t], y[t]);
+        for(int dy = -1; dy <= 1; dy++) {
+            for(int dx = -1; dx <= 1; dx++) {
+                int nx = x[i] + dx;
+                int ny = y[i] + dy;
+                if(nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) continue;
+                if(grid[cell(nx, ny)] != 0) continue;
+                int dist = distanceSq(nx, ny, x[t], y[t]);
+                if(dist < bestDist) {
+                    bestDist = dist;
+                    bestX = nx;
+                    bestY = ny;
+                }
+            }
+        }
+
+        grid[cell(x[i], y[i])] = 0;
+        x[i] = bestX;
+        y[i] = bestY;
+        grid[cell(x[i], y[i])] = i + 1;
+    }
+
+    // builds the agent's view of the current state from the living units
+    private QLState snapshot() {
+        QLState qls = states.acquire(xExtent, yExtent);
+        for(int i = 0; i < numUnits; i++) {
+            if(hp[i] <= 0) continue;
+            if(players[i] == 0) qls.addFriendly(ids[i], hp[i], x[i], y[i]);
+            else qls.addEnemy(ids[i], hp[i], x[i], y[i]);
+        }
+        qls.build();
+        return qls;
+    }
+
+    // gives every friendly footman the target the agent chose for it
+    private void issueOrders(QLState qls) {
+        for(int i = 0; i < numUnits; i++) {
+            if(players[i] != 0) continue;
+            int eid = qls.getTargetFor(ids[i]);
+            if(eid >= 0) target[i] = indexOf(eid);
+        }
+    }
+
+    // returns the index of the living unit of the player nearest to unit i, or -1 if there is none
+    private int nearest(int i, int player) {
+        int best = -1;
+        int bestDist = Integer.MAX_VALUE;
+        for(int j = 0; j < numUnits; j++) {
+            if(players[j] != player || hp[j] <= 0) continue;
+            int dist = distanceSq(x[i], y[i], x[j], y[j]);
+            if(dist < bestDist) {
+                bestDist = dist;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    private boolean isAlive(int player) {
+        for(int i = 0; i < numUnits; i++)
+            if(players[i] == player && hp[i] > 0) return true;
+        return false;
+    }
+
+    // units attack anything within their range in chessboard distance, like SEPIA
+    private boolean inRange(int i, int t) {
+        return Math.max(Math.abs(x[i] - x[t]), Math.abs(y[i] - y[t])) <= range[i];
+    }
+
+    private int indexOf(int id) {
+        for(int i = 0; i < numUnits; i++)
+            if(ids[i] == id) return i;
+        return -1;
+    }
+
+    private int cell(int x, int y) { return y * xExtent + x; }
+
+    private static int distanceSq(int x1, int y1, int x2, int y2) {
+        return (x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2);
+    }
+
+    // returns the direct children of e with the given tag; also used by ScenarioGenerator
+    static List<Element> children(Element e, String tag) {
+        List<Element> list = new ArrayList<Element>();
+        NodeList nodes = e.getChildNodes();
+        for(int i = 0; i < nodes.getLength(); i++) {
+            Node n = nodes.item(i);
+            if(n.getNodeType() == Node.ELEMENT_NODE && n.getNodeName().equals(tag))
+                list.add((Element) n);
+        }
+        return list;
+    }
+
+    // returns the trimmed text of the first child of e with the given tag
+    static String getText(Element e, String tag) {
+        return children(e, tag).get(0).getTextContent().trim();
+    }
+
+    static int getInt(Element e, String tag) {
+        return Integer.parseInt(getText(e, tag));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("Usage: CombatSimulator [map] [eps] [debug]");
+            System.out.println("\tmap: SEPIA map file to play, e.g. rl_5fv5f.xml");
+            System.out.println("\teps: number of episodes to run (must be > 0)");
+            System.out.println("\tdebug: set to true to display debug messages");
+            System.exit(1);
+        }
+
+        CombatSimulator sim = new CombatSimulator(args[0]);
+        String[] agentArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, agentArgs, 0, agentArgs.length);
+        QLearningAgent agent = new QLearningAgent(0, agentArgs);
+
+        // play until the agent has finished its last evaluation, like the SEPIA runner
+        long start = System.nanoTime();
+        int episodes = 0;
+        long turns = 0;
+        while(!agent.isFinished()) {
+            turns += sim.runEpisode(agent);
+            episodes++;
+        }
+        float seconds = (System.nanoTime() - start) / 1e9f;
+        agent.close();
+        System.out.printf("Simulated %d episodes (%d turns) in %.1fs, %.1f episodes/sec\n",
+                episodes, turns, seconds, episodes / seconds);
+    }
+}
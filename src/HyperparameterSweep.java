@@ -0,0 +1,222 @@
+//
+// HyperparameterSweep.java
+//
+// Trains one QLearningAgent per point of a grid or random search over its settings, on all cores at once
+// - Every point gets its own agent, CombatSimulator and random stream split off a single seed, so runs are
+//   isolated from each other and the whole sweep is reproducible
+// - Swept settings are given as key=v1,v2,... (grid or random choice) or, for numeric settings only,
+//   key=lo:hi (random only); any other key=value argument applies to every point, so file and directory
+//   settings are never split, e.g. checkpoint=C:\saves\s.qlcp
+// - Points are ranked by the average reward of their last SCORED_EVALS evaluation blocks
+// - A checkpoint, metrics file or trace directory given to the sweep is made unique per point
+//   (e.g. saves/sweep.qlcp becomes saves/sweep-3.qlcp), so concurrent points never share a file
+//
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HyperparameterSweep {
+
+    private static final int    SCORED_EVALS    = 3;    // evaluation blocks averaged into a point's score
+
+    // result of training one point of the sweep
+    static class Result {
+        QLConfig                config;
+        int                     point;                  // position in the sweep, which numbers its files
+        float                   score;                  // mean reward of the last SCORED_EVALS evaluations
+        int                     episodes;               // training and evaluation episodes played
+        float                   seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3) printUsage();
+
+        String map = args[0];
+        String mode = args[1];
+        int workers = Runtime.getRuntime().availableProcessors();
+        long seed = 12345L;
+        int samples = 0;
+        QLConfig base = new QLConfig();
+        base.quiet = true;
+        List<String> keys = new ArrayList<String>();    // swept keys
+        List<String> values = new ArrayList<String>();  // their value lists or ranges
+        try {
+            if(mode.startsWith("random:")) samples = Integer.parseInt(mode.substring("random:".length()));
+            else if(!mode.equals("grid")) printUsage();
+            base.episodes = Integer.parseInt(args[2]);
+            for(int i = 3; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if(eq <= 0) printUsage();
+                String key = args[i].substring(0, eq);
+                String value = args[i].substring(eq + 1);
+                if(key.equals("workers")) workers = Integer.parseInt(value);
+                else if(key.equals("seed")) seed = Long.parseLong(value);
+                else if((value.contains(",") && !QLConfig.isPath(key))
+                        || (value.contains(":") && QLConfig.isNumeric(key))) {
+                    keys.add(key);
+                    values.add(value);
+                } else base.set(key, value);
+            }
+            base.validate();
+        } catch(IllegalArgumentException e) {           // includes malformed numbers
+            e.printStackTrace();
+            printUsage();
+        }
+        if(workers < 1 || (mode.startsWith("random:") && samples < 1)) printUsage();
+
+        // expand the sweep into one configuration per point
+        SplittableRandom root = new SplittableRandom(seed);
+        List<QLConfig> points = new ArrayList<QLConfig>();
+        try {
+            if(samples > 0) {
+                SplittableRandom sampler = root.split();
+                for(int s = 0; s < samples; s++) {
+                    QLConfig config = base.copy();
+                    for(int k = 0; k < keys.size(); k++) config.set(keys.get(k), sample(values.get(k), sampler));
+                    config.validate();
+                    points.add(config);
+                }
+            } else {
+                grid(base, keys, values, 0, points);
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        for(int p = 0; p < points.size(); p++) {
+            QLConfig config = points.get(p);
+            if(config.checkpoint != null) config.checkpoint = perPoint(config.checkpoint, p);
+            if(config.metrics != null) config.metrics = perPoint(config.metrics, p);
+            if(config.trace != null) config.trace = new File(config.trace, "point-" + p);
+        }
+
+        System.out.printf("Sweeping %d configuration(s) on %s with %d worker(s)\n", points.size(), map, workers);
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for(final QLConfig config: points) {
+            // split in submission order so the sweep is reproducible
+            final Random rng = new Random(root.split().nextLong());
+            final CombatSimulator sim = new CombatSimulator(map);
+            futures.add(pool.submit(new Callable<Result>() {
+                public Result call() { return train(config, sim, rng); }
+            }));
+        }
+        List<Result> results = new ArrayList<Result>();
+        for(Future<Result> future: futures) {
+            Result result = future.get();
+            result.point = results.size();
+            results.add(result);
+        }
+        pool.shutdown();
+        float seconds = (System.nanoTime() - start) / 1e9f;
+
+        // best first
+        Collections.sort(results, new Comparator<Result>() {
+            public int compare(Result a, Result b) { return Float.compare(b.score, a.score); }
+        });
+        System.out.printf("%4s %5s %10s %8s %8s  %s\n", "rank", "point", "score", "episodes", "time(s)", "settings");
+        for(int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            StringBuilder settings = new StringBuilder();
+            for(String key: keys) settings.append(key).append('=').append(result.config.get(key)).append(' ');
+            System.out.printf(Locale.ROOT, "%4d %5d %10.1f %8d %8.1f  %s\n", r + 1, result.point, result.score,
+                    result.episodes, result.seconds, settings.toString().trim());
+        }
+        System.out.printf("Swept %d configuration(s) in %.1fs\n", results.size(), seconds);
+    }
+
+    // trains an agent with config until it finishes its schedule
+    private static Result train(QLConfig config, CombatSimulator sim, Random rng) {
+        QLearningAgent agent = new QLearningAgent(0, config, rng);
+        float[] last = new float[SCORED_EVALS];         // rewards of the last evaluations, as a ring
+        int evaluations = 0;
+        int played = 0;
+        long start = System.nanoTime();
+        while(!agent.isFinished()) {
+            sim.runEpisode(agent);
+            played++;
+            if(agent.getEvaluations() > evaluations) {
+                last[evaluations % SCORED_EVALS] = agent.getAverageReward();
+                evaluations = agent.getEvaluations();
+            }
+        }
+        agent.close();
+
+        Result result = new Result();
+        result.config = config;
+        result.episodes = played;
+        result.seconds = (System.nanoTime() - start) / 1e9f;
+        int n = Math.min(evaluations, SCORED_EVALS);
+        for(int i = 0; i < n; i++) result.score += last[i] / n;
+        if(n == 0) result.score = Float.NEGATIVE_INFINITY;
+        return result;
+    }
+
+    // adds every combination of the values of keys[k..] on top of config to points
+    private static void grid(QLConfig config, List<String> keys, List<String> values, int k, List<QLConfig> points) {
+        if(k == keys.size()) {
+            config.validate();
+            points.add(config);
+            return;
+        }
+        if(values.get(k).contains(":"))
+            throw new IllegalArgumentException("Range " + keys.get(k) + "=" + values.get(k) + " needs random search");
+        for(String value: values.get(k).split(",")) {
+            QLConfig point = config.copy();
+            point.set(keys.get(k), value.trim());
+            grid(point, keys, values, k + 1, points);
+        }
+    }
+
+    // returns file with -p inserted before its extension, e.g. sweep-3.qlcp for point 3 of sweep.qlcp
+    private static File perPoint(File file, int p) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String unique = dot > 0 ? name.substring(0, dot) + "-" + p + name.substring(dot) : name + "-" + p;
+        return new File(file.getParentFile(), unique);
+    }
+
+    // picks one of a list of values, or a value uniformly from a lo:hi range (integral if both ends are)
+    private static String sample(String values, SplittableRandom rng) {
+        if(!values.contains(":")) {
+            String[] list = values.split(",");
+            return list[rng.nextInt(list.length)].trim();
+        }
+        String[] range = values.split(":");
+        if(range.length != 2) throw new IllegalArgumentException("Malformed range " + values);
+        try {
+            int lo = Integer.parseInt(range[0].trim());
+            int hi = Integer.parseInt(range[1].trim());
+            return Integer.toString(lo + rng.nextInt(hi - lo + 1));
+        } catch(NumberFormatException e) {              // not integral, sample a float
+            double lo = Double.parseDouble(range[0].trim());
+            double hi = Double.parseDouble(range[1].trim());
+            return Double.toString(lo + rng.nextDouble() * (hi - lo));
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: HyperparameterSweep [map] [mode] [eps] [key=value]...");
+        System.out.println("\tmap: SEPIA map file to train on, e.g. rl_5fv5f.xml");
+        System.out.println("\tmode: grid, or random:N to sample N configurations");
+        System.out.println("\teps: number of training episodes per configuration (must be > 0)");
+        System.out.println("\tkey=v1,v2,...: values to sweep a QLearningAgent setting over, e.g. learningRate=0.0001,0.001");
+        System.out.println("\tkey=lo:hi: range to sample a numeric setting from in random mode, e.g. epsilon=0.01:0.1");
+        System.out.println("\tkey=value: setting used by every configuration, e.g. replay=16; checkpoint, metrics and");
+        System.out.println("\t\ttrace get a separate file or directory per configuration, numbered by its position");
+        System.out.println("\tworkers=N: number of configurations trained at once (default: number of cores)");
+        System.out.println("\tseed=N: seed the random streams are split from (default: 12345)");
+        System.exit(1);
+    }
+}
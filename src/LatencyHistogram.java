@@ -0,0 +1,63 @@
+//
+// LatencyHistogram.java
+//
+// Fixed-size histogram of latencies in nanoseconds, in the style of HdrHistogram
+// - Values below 16 get their own bucket, above that every power of two is split into 16 buckets
+// - That keeps every bucket within ~6% of the values it holds, in 1024 longs
+// - Recording is a couple of shifts and an increment, and never allocates
+//
+
+public class LatencyHistogram {
+
+    private static final int    SUB_BITS        = 4;
+    private static final int    SUB_BUCKETS     = 1 << SUB_BITS;
+
+    private long[]              counts;
+    private long                count;
+    private long                total;
+    private long                max;
+
+    public LatencyHistogram() {
+        counts = new long[64 * SUB_BUCKETS];
+    }
+
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        counts[bucketOf(nanos)]++;
+        count++;
+        total += nanos;
+        if(nanos > max) max = nanos;
+    }
+
+    public long getCount() { return count; }
+
+    public long getMax() { return max; }
+
+    public double getMean() { return count == 0 ? 0 : (double) total / count; }
+
+    // returns the smallest value of the bucket holding the given percentile (0 - 100)
+    public long getPercentile(double percentile) {
+        if(count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) return lowestValueOf(i);
+        }
+        return max;
+    }
+
+    private static int bucketOf(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowestValueOf(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+}
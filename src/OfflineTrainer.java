@@ -0,0 +1,180 @@
+//
+// OfflineTrainer.java
+//
+// Trains the weights of a QLearningAgent from trace files recorded with its trace setting, without playing
+// - Starts from the policy in the checkpoint if it exists, or from random normalized weights like the agent
+// - Streams every trace file once per pass, so traces do not have to fit in memory
+// - Applies the agent's TD update to each transition in file order, or averages it over batch transitions
+//   and applies it once like experience replay
+// - The next state of a transition is scored with the target the agent picked when it was recorded
+// - Saves the trained policy back to the checkpoint with the learning rate it used and the passes and
+//   transitions added to its offline training; the episode counter is left as it was, since the traced
+//   episodes were already counted by the run that played them
+//
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class OfflineTrainer {
+
+    private float[]             weights;
+    private float               learningRate;
+    private int                 batch;                  // transitions per update, 1 to update after each
+    private float[]             features;
+    private float[]             next;
+    private float[]             gradient;
+    private int                 pending;                // transitions summed into gradient, averaged when applied
+
+    // statistics of the current pass
+    private long                records;
+    private double              totalError;             // sum of |TD error|
+
+    public OfflineTrainer(float[] weights, float learningRate, int batch) {
+        this.weights = weights;
+        this.learningRate = learningRate;
+        this.batch = batch;
+        features = new float[weights.length];
+        next = new float[weights.length];
+        gradient = new float[weights.length];
+    }
+
+    public long getRecords() { return records; }
+
+    public float getMeanError() { return records > 0 ? (float) (totalError / records) : 0f; }
+
+    // learns from every transition in the trace files once
+    public void pass(List<File> traces) throws IOException {
+        records = 0;
+        totalError = 0;
+        for(File f: traces) {
+            TraceReader reader = new TraceReader(f);
+            try {
+                if(reader.getNumFeatures() != weights.length)
+                    throw new IOException(f + " has " + reader.getNumFeatures() + " features, expected " + weights.length);
+                while(reader.next()) learn(reader);
+            } finally {
+                reader.close();
+            }
+        }
+        if(pending > 0) apply();
+    }
+
+    private void learn(TraceReader reader) {
+        float reward = reader.get(features, next);
+        float difference = reward + reader.getDiscount() * QLearningAgent.Q(weights, next)
+                - QLearningAgent.Q(weights, features);
+        for(int i = 0; i < weights.length; i++)
+            gradient[i] += difference * features[i];
+        totalError += Math.abs(difference);
+        records++;
+        if(++pending == batch) apply();
+    }
+
+    // applies the averaged gradient followed by a single normalization
+    private void apply() {
+        for(int i = 0; i < weights.length; i++)
+            weights[i] += learningRate * gradient[i] / pending;
+        QLearningAgent.normalize(weights);
+        Arrays.fill(gradient, 0f);
+        pending = 0;
+    }
+
+    // adds the trace files in path, or path itself if it is not a directory, in name order
+    private static void addTraces(File path, List<File> traces) {
+        if(!path.isDirectory()) {
+            traces.add(path);
+            return;
+        }
+        File[] files = path.listFiles(new FileFilter() {
+            public boolean accept(File f) { return f.isFile() && f.getName().endsWith(TraceWriter.SUFFIX); }
+        });
+        Arrays.sort(files);                             // names start with the first episode
+        traces.addAll(Arrays.asList(files));
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) printUsage();
+
+        File checkpoint = new File(args[0]);
+        int passes = 0;
+        QLConfig config = new QLConfig();
+        int batch = 1;
+        List<File> traces = new ArrayList<File>();
+        try {
+            passes = Integer.parseInt(args[1]);
+            for(int i = 2; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if(eq <= 0) addTraces(new File(args[i]), traces);
+                else if(args[i].substring(0, eq).equals("batch")) batch = Integer.parseInt(args[i].substring(eq + 1));
+                else config.set(args[i].substring(0, eq), args[i].substring(eq + 1));
+            }
+            config.validate();
+        } catch(IllegalArgumentException e) {           // includes malformed numbers
+            e.printStackTrace();
+            printUsage();
+        }
+        if(passes < 1 || batch < 1 || traces.isEmpty()) printUsage();
+
+        // start from the checkpoint, or from the random weights the SEPIA agent starts from
+        PolicyCheckpoint cp;
+        try {
+            if(checkpoint.exists()) {
+                cp = PolicyCheckpoint.load(checkpoint);
+                System.out.printf("Restored policy from %s after %d episodes and %d offline passes\n", checkpoint,
+                        cp.numEpisodes, cp.offlinePasses);
+            } else {
+                cp = new PolicyCheckpoint();
+                cp.discountFactor = config.discountFactor;
+                cp.learningRate = config.learningRate;
+                cp.epsilon = config.epsilon;
+                cp.trainingEps = config.trainingEps;
+                cp.evaluationEps = config.evaluationEps;
+                cp.weights = QLearningAgent.randomWeights(new Random(QLearningAgent.SEED));
+                QLearningAgent.normalize(cp.weights);
+            }
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        OfflineTrainer trainer = new OfflineTrainer(cp.weights, config.learningRate, batch);
+        System.out.printf("Training on %d trace file(s) for %d pass(es)\n", traces.size(), passes);
+        System.out.printf("%5s %12s %12s %12s\n", "pass", "records", "mean |TD|", "records/sec");
+        try {
+            for(int p = 1; p <= passes; p++) {
+                long start = System.nanoTime();
+                trainer.pass(traces);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf(Locale.ROOT, "%5d %12d %12.3f %12.0f\n", p, trainer.getRecords(),
+                        trainer.getMeanError(), trainer.getRecords() / seconds);
+                cp.offlinePasses++;
+                cp.offlineTransitions += trainer.getRecords();
+            }
+            cp.learningRate = config.learningRate;
+            cp.save(checkpoint);
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.out.printf("Saved policy to %s after %d offline passes over %d transitions\n", checkpoint,
+                cp.offlinePasses, cp.offlineTransitions);
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: OfflineTrainer [checkpoint] [passes] [trace]... [key=value]...");
+        System.out.println("\tcheckpoint: policy to start from and save to, created if missing, e.g. saves/test1.qlcp");
+        System.out.println("\tpasses: number of times to learn from every trace (must be > 0)");
+        System.out.println("\ttrace: trace file, or directory of trace files written with the agent's trace setting");
+        System.out.println("\tbatch=N: transitions averaged into each weight update (default: 1)");
+        System.out.println("\tkey=value: QLearningAgent setting, e.g. learningRate=0.0001; only learningRate and, for a");
+        System.out.println("\t\tnew checkpoint, the settings saved with it are used");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,97 @@
+//
+// ParallelTrainer.java
+//
+// Trains QLearningAgent on several cores at once with the headless CombatSimulator
+// - Each worker has its own agent, simulator and random stream split off a single seed
+// - Workers share one lock-free weight vector, so every worker learns from every episode;
+//   each evaluation block plays the shared weights as they were when the block started
+// - With one worker everything runs on the calling thread and is fully reproducible
+//
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ParallelTrainer {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) printUsage();
+
+        String map = args[0];
+        int episodes = 0;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long seed = 12345L;
+        try {
+            episodes = Integer.parseInt(args[1]);
+            if(args.length > 2) workers = Integer.parseInt(args[2]);
+            if(args.length > 3) seed = Long.parseLong(args[3]);
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            printUsage();
+        }
+        if(episodes < 1 || workers < 1) printUsage();
+
+        // give every worker its own agent and random stream, then point them all at worker 0's weights
+        SplittableRandom root = new SplittableRandom(seed);
+        QLearningAgent[] agents = new QLearningAgent[workers];
+        CombatSimulator[] sims = new CombatSimulator[workers];
+        for(int w = 0; w < workers; w++) {
+            QLConfig config = new QLConfig();
+            config.episodes = episodes;
+            config.quiet = w > 0;                       // only worker 0 reports progress
+            agents[w] = new QLearningAgent(0, config, new Random(root.split().nextLong()));
+            sims[w] = new CombatSimulator(map);
+        }
+        SharedWeights shared = new SharedWeights(agents[0].getWeights());
+        for(QLearningAgent agent: agents) agent.share(shared);
+
+        System.out.printf("Training on %s with %d worker(s)\n", map, workers);
+        long start = System.nanoTime();
+        int played = 0;
+        if(workers == 1) {
+            played = train(agents[0], sims[0]);
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for(int w = 0; w < workers; w++) {
+                final QLearningAgent agent = agents[w];
+                final CombatSimulator sim = sims[w];
+                results.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() { return train(agent, sim); }
+                }));
+            }
+            for(Future<Integer> result: results) played += result.get();
+            pool.shutdown();
+        }
+        float seconds = (System.nanoTime() - start) / 1e9f;
+
+        System.out.printf("Played %d episodes in %.1fs, %.1f episodes/sec\n", played, seconds, played / seconds);
+        agents[0].share(shared);                        // pull the final weights
+        agents[0].printWeights();
+        for(QLearningAgent agent: agents) agent.close();
+    }
+
+    // plays episodes until the agent has finished its schedule, returns the number of episodes played
+    private static int train(QLearningAgent agent, CombatSimulator sim) {
+        int played = 0;
+        while(!agent.isFinished()) {
+            sim.runEpisode(agent);
+            played++;
+        }
+        return played;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: ParallelTrainer [map] [eps] [workers] [seed]");
+        System.out.println("\tmap: SEPIA map file to play, e.g. rl_5fv5f.xml");
+        System.out.println("\teps: number of episodes each worker runs (must be > 0)");
+        System.out.println("\tworkers: number of worker threads (default: number of cores)");
+        System.out.println("\tseed: seed the worker random streams are split from (default: 12345)");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,115 @@
+//
+// PolicyCheckpoint.java
+//
+// Compact, versioned binary snapshot of a learned policy
+// - Stores the feature weights, the episode counter and the hyperparameters they were trained with
+// - Layout (big-endian): magic, version, number of features, episodes played, discount factor,
+//   learning rate, epsilon, training episodes, evaluation episodes, offline passes and transitions
+//   learned from by OfflineTrainer, then one float per weight
+// - Version 1 checkpoints, which predate offline training, are still read, with no offline training
+// - Files are written to a temporary file and moved into place, and read back whole into the heap; they are
+//   small, and a live mapping would stop the next save from replacing the file on Windows
+//
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class PolicyCheckpoint {
+
+    private static final int    MAGIC           = 0x514C4350;   // "QLCP"
+    private static final int    VERSION         = 2;
+    private static final int    HEADER_BYTES    = 10 * 4 + 8;
+    private static final int    V1_HEADER_BYTES = 9 * 4;
+
+    public int                  numEpisodes;            // training episodes played
+    public float                discountFactor;
+    public float                learningRate;
+    public float                epsilon;
+    public int                  trainingEps;
+    public int                  evaluationEps;
+    public int                  offlinePasses;          // passes OfflineTrainer made over recorded traces
+    public long                 offlineTransitions;     // transitions OfflineTrainer learned from, over all passes
+    public float[]              weights;
+
+    // number of bytes the checkpoint takes up once written
+    public int size() { return HEADER_BYTES + 4 * weights.length; }
+
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size());
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(weights.length);
+        buf.putInt(numEpisodes);
+        buf.putFloat(discountFactor);
+        buf.putFloat(learningRate);
+        buf.putFloat(epsilon);
+        buf.putInt(trainingEps);
+        buf.putInt(evaluationEps);
+        buf.putInt(offlinePasses);
+        buf.putLong(offlineTransitions);
+        for(float w: weights) buf.putFloat(w);
+        out.write(buf.array());
+        out.flush();
+    }
+
+    // writes the checkpoint next to file, then moves it into place so a crash never leaves half a checkpoint
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static PolicyCheckpoint read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while((n = in.read(chunk)) > 0) bytes.write(chunk, 0, n);
+        return read(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    public static PolicyCheckpoint load(File file) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    private static PolicyCheckpoint read(ByteBuffer buf) throws IOException {
+        if(buf.remaining() < V1_HEADER_BYTES || buf.getInt() != MAGIC)
+            throw new IOException("Not a policy checkpoint");
+        int version = buf.getInt();
+        if(version != VERSION && version != 1)
+            throw new IOException("Unsupported policy checkpoint version " + version);
+
+        int numFeatures = buf.getInt();
+        if(numFeatures < 0 || numFeatures > buf.remaining() / 4)
+            throw new IOException("Corrupt policy checkpoint with " + numFeatures + " weights");
+        int header = version == 1 ? V1_HEADER_BYTES : HEADER_BYTES;
+        if(buf.remaining() != header - 3 * 4 + 4 * numFeatures)
+            throw new IOException("Truncated policy checkpoint");
+
+        PolicyCheckpoint cp = new PolicyCheckpoint();
+        cp.numEpisodes = buf.getInt();
+        cp.discountFactor = buf.getFloat();
+        cp.learningRate = buf.getFloat();
+        cp.epsilon = buf.getFloat();
+        cp.trainingEps = buf.getInt();
+        cp.evaluationEps = buf.getInt();
+        if(version > 1) {
+            cp.offlinePasses = buf.getInt();
+            cp.offlineTransitions = buf.getLong();
+        }
+        cp.weights = new float[numFeatures];
+        for(int i = 0; i < numFeatures; i++) cp.weights[i] = buf.getFloat();
+        return cp;
+    }
+}
@@ -0,0 +1,151 @@
+//
+// QLConfig.java
+//
+// Settings of a QLearningAgent, parsed from its CombatConfig.xml arguments
+// - Positional arguments keep their old meaning: eps, debug, checkpoint, metrics, replay, cap, smdp,
+//   deadline and adaptive, in that order
+// - Any argument of the form key=value sets that key instead, which also reaches the learning constants,
+//   e.g. <Argument>learningRate=0.0005</Argument>
+// - The number of features is fixed by QLState and is not configurable
+//
+
+import java.io.File;
+import java.math.BigDecimal;
+
+public class QLConfig implements Cloneable {
+
+    // keys of the positional arguments, in order
+    private static final String[] POSITIONAL = { "episodes", "debug", "checkpoint", "metrics", "replay", "cap",
+            "smdp", "deadline", "adaptive" };
+
+    // keys whose value is a number, and keys whose value is a file or directory
+    private static final String[] NUMERIC = { "episodes", "replay", "replayCapacity", "cap", "deadline",
+            "discountFactor", "learningRate", "epsilon", "trainingEps", "evaluationEps" };
+    private static final String[] PATHS = { "checkpoint", "metrics", "trace" };
+
+    public int                  episodes;               // training episodes to play
+    public boolean              debug;
+    public boolean              quiet;                  // do not print progress
+    public File                 checkpoint;             // null if not saving
+    public File                 metrics;                // null if not dumping
+    public int                  replay;                 // minibatch size for experience replay, 0 for none
+    public int                  replayCapacity;         // transitions kept for experience replay
+    public int                  cap;                    // attackers per enemy for joint assignment, 0 for none
+    public boolean              smdp;
+    public long                 deadline;               // step time budget in microseconds, 0 for none
+    public boolean              adaptive;
+    public File                 trace;                  // directory transitions are traced to, null if not tracing
+
+    // q-learning constants
+    public float                discountFactor;
+    public float                learningRate;           // starting learning rate
+    public float                epsilon;                // starting exploration rate
+    public int                  trainingEps;            // episodes in a training block
+    public int                  evaluationEps;          // episodes in an evaluation block
+
+    public QLConfig() {
+        episodes = 1;
+        replayCapacity = 65536;
+        discountFactor = 0.9f;
+        learningRate = 0.0001f;
+        epsilon = 0.02f;
+        trainingEps = 10;
+        evaluationEps = 5;
+    }
+
+    // parses positional and key=value arguments, throws IllegalArgumentException if any is invalid
+    public static QLConfig parse(String[] args) {
+        QLConfig config = new QLConfig();
+        int position = 0;
+        for(String arg: args) {
+            int eq = arg.indexOf('=');
+            if(eq > 0) config.set(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+            else if(position < POSITIONAL.length) config.set(POSITIONAL[position++], arg.trim());
+            else throw new IllegalArgumentException("Unexpected argument " + arg);
+        }
+        config.validate();
+        return config;
+    }
+
+    // sets the value of a key, throws IllegalArgumentException if the key is unknown or the value malformed
+    public void set(String key, String value) {
+        if(key.equals("episodes")) episodes = Integer.parseInt(value);
+        else if(key.equals("debug")) debug = Boolean.parseBoolean(value);
+        else if(key.equals("quiet")) quiet = Boolean.parseBoolean(value);
+        else if(key.equals("checkpoint")) checkpoint = value.isEmpty() ? null : new File(value);
+        else if(key.equals("metrics")) metrics = value.isEmpty() ? null : new File(value);
+        else if(key.equals("replay")) replay = Integer.parseInt(value);
+        else if(key.equals("replayCapacity")) replayCapacity = Integer.parseInt(value);
+        else if(key.equals("cap")) cap = Integer.parseInt(value);
+        else if(key.equals("smdp")) smdp = Boolean.parseBoolean(value);
+        else if(key.equals("deadline")) deadline = Long.parseLong(value);
+        else if(key.equals("adaptive")) adaptive = Boolean.parseBoolean(value);
+        else if(key.equals("trace")) trace = value.isEmpty() ? null : new File(value);
+        else if(key.equals("discountFactor")) discountFactor = Float.parseFloat(value);
+        else if(key.equals("learningRate")) learningRate = Float.parseFloat(value);
+        else if(key.equals("epsilon")) epsilon = Float.parseFloat(value);
+        else if(key.equals("trainingEps")) trainingEps = Integer.parseInt(value);
+        else if(key.equals("evaluationEps")) evaluationEps = Integer.parseInt(value);
+        else throw new IllegalArgumentException("Unknown setting " + key);
+    }
+
+    public void validate() {
+        if(episodes < 1) throw new IllegalArgumentException("episodes must be > 0");
+        if(replay < 0) throw new IllegalArgumentException("replay must be >= 0");
+        if(replayCapacity < 1) throw new IllegalArgumentException("replayCapacity must be > 0");
+        if(cap < 0) throw new IllegalArgumentException("cap must be >= 0");
+        if(deadline < 0) throw new IllegalArgumentException("deadline must be >= 0");
+        if(discountFactor < 0 || discountFactor > 1) throw new IllegalArgumentException("discountFactor must be in [0, 1]");
+        if(learningRate <= 0) throw new IllegalArgumentException("learningRate must be > 0");
+        if(epsilon < 0 || epsilon > 1) throw new IllegalArgumentException("epsilon must be in [0, 1]");
+        if(trainingEps < 1) throw new IllegalArgumentException("trainingEps must be > 0");
+        if(evaluationEps < 1) throw new IllegalArgumentException("evaluationEps must be > 0");
+    }
+
+    public QLConfig copy() {
+        try {
+            return (QLConfig) clone();
+        } catch(CloneNotSupportedException e) {         // cannot happen, QLConfig is Cloneable
+            throw new AssertionError(e);
+        }
+    }
+
+    // returns the value of a key as it would be written in an argument
+    public String get(String key) {
+        if(key.equals("episodes")) return Integer.toString(episodes);
+        if(key.equals("debug")) return Boolean.toString(debug);
+        if(key.equals("quiet")) return Boolean.toString(quiet);
+        if(key.equals("checkpoint")) return checkpoint == null ? "" : checkpoint.getPath();
+        if(key.equals("metrics")) return metrics == null ? "" : metrics.getPath();
+        if(key.equals("replay")) return Integer.toString(replay);
+        if(key.equals("replayCapacity")) return Integer.toString(replayCapacity);
+        if(key.equals("cap")) return Integer.toString(cap);
+        if(key.equals("smdp")) return Boolean.toString(smdp);
+        if(key.equals("deadline")) return Long.toString(deadline);
+        if(key.equals("adaptive")) return Boolean.toString(adaptive);
+        if(key.equals("trace")) return trace == null ? "" : trace.getPath();
+        if(key.equals("discountFactor")) return plain(discountFactor);
+        if(key.equals("learningRate")) return plain(learningRate);
+        if(key.equals("epsilon")) return plain(epsilon);
+        if(key.equals("trainingEps")) return Integer.toString(trainingEps);
+        if(key.equals("evaluationEps")) return Integer.toString(evaluationEps);
+        throw new IllegalArgumentException("Unknown setting " + key);
+    }
+
+    // true if the key takes a number, e.g. so it can be swept over a range
+    public static boolean isNumeric(String key) { return contains(NUMERIC, key); }
+
+    // true if the key takes a file or directory, whose name may contain any character
+    public static boolean isPath(String key) { return contains(PATHS, key); }
+
+    private static boolean contains(String[] keys, String key) {
+        for(String k: keys)
+            if(k.equals(key)) return true;
+        return false;
+    }
+
+    // shortest decimal form of a float, e.g. 0.0001 rather than 1.0E-4
+    private static String plain(float value) {
+        return new BigDecimal(Float.toString(value)).stripTrailingZeros().toPlainString();
+    }
+}
@@ -3,140 +3,347 @@
 //
 // Data structure representing a possible game state
 // Stores lists of friendly and enemy units
+// - Units are packed side by side in parallel int arrays (id, HP, x, y, neighbor counts),
+//   and the QLUnits handed out are views onto one slot of those arrays
+// - A state is filled with addFriendly / addEnemy and then built; states from a QLStatePool are
+//   cleared and refilled instead of reallocated, so their arrays are reused from step to step
 //
 
 import edu.cwru.sepia.environment.model.state.State.StateView;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Random;
 
 public class QLState {
 
-    private List<QLUnit>            friendly;   // list of friendly footmen
-    private List<QLUnit>            enemy;      // list of enemy footmen
-    private Map<Integer, Integer>   targets;    // maps id of footmen to their targets
+    public static final int         NUM_FEATURES = 9;
+
+    private Units                   friendly;   // friendly footmen
+    private Units                   enemy;      // enemy footmen
+    private int[]                   targets;    // id of the enemy each friendly footman targets, by friendly slot, -1 if none
+    private QLStatePool             pool;       // pool the state goes back to when released, null if not pooled
+
+    // occupancy grids, one cell per map tile, holding the number of units on that tile
+    private int                     xExtent;    // width of the map
+    private int                     yExtent;    // height of the map
+    private int[]                   friendlyGrid;
+    private int[]                   enemyGrid;
+    private boolean                 counted;    // set once neighbor counts are cached on every unit
+
+    // index from unit id to its position in the friendly or enemy list, -1 if absent
+    private int[]                   friendlySlot;
+    private int[]                   enemySlot;
+    private int[]                   attackers;  // number of friendly footmen targeting each enemy, by enemy slot
+
+    // friendly x enemy matrix of feature vectors, filled in lazily the first time a pair is scored
+    private float[]                 features;
+    private boolean[]               cached;     // set once the features of a pair are in the matrix
 
     public QLState(StateView state) {
-        friendly = new ArrayList<QLUnit>();
-        enemy = new ArrayList<QLUnit>();
-        targets = new HashMap<Integer, Integer>();
+        this();
+        read(state);
+    }
+
+    // creates an empty state, to be filled with addFriendly / addEnemy and then built
+    public QLState() {
+        friendly = new Units(true);
+        enemy = new Units(false);
+        targets = new int[0];
+        friendlyGrid = new int[0];
+        enemyGrid = new int[0];
+        friendlySlot = new int[0];
+        enemySlot = new int[0];
+        attackers = new int[0];
+        features = new float[0];
+        cached = new boolean[0];
+    }
+
+    QLState(QLStatePool pool) {
+        this();
+        this.pool = pool;
+    }
+
+    // empties the state so it can be refilled for a map of the given extent
+    public void clear(int xExtent, int yExtent) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        friendly.clear();
+        enemy.clear();
+        counted = false;
+    }
+
+    public void addFriendly(int id, int hp, int x, int y) { friendly.add(id, hp, x, y); }
+
+    public void addEnemy(int id, int hp, int x, int y) { enemy.add(id, hp, x, y); }
+
+    // fills the state from a SEPIA state view and builds it
+    void read(StateView state) {
+        clear(state.getXExtent(), state.getYExtent());
+        for(UnitView unit: state.getUnits(0))
+            addFriendly(unit.getID(), unit.getHP(), unit.getXPosition(), unit.getYPosition());
+        for(UnitView unit: state.getUnits(1))
+            addEnemy(unit.getID(), unit.getHP(), unit.getXPosition(), unit.getYPosition());
+        build();
+    }
+
+    // indexes the units added since the last clear and counts their neighbors
+    public void build() {
+        int cells = xExtent * yExtent;
+        if(friendlyGrid.length < cells) {
+            friendlyGrid = new int[cells];
+            enemyGrid = new int[cells];
+        } else {
+            Arrays.fill(friendlyGrid, 0, cells, 0);
+            Arrays.fill(enemyGrid, 0, cells, 0);
+        }
+        for(int i = 0; i < friendly.size; i++) friendlyGrid[cell(friendly.x[i], friendly.y[i])]++;
+        for(int i = 0; i < enemy.size; i++) enemyGrid[cell(enemy.x[i], enemy.y[i])]++;
+
+        int maxID = -1;
+        for(int i = 0; i < friendly.size; i++) maxID = Math.max(maxID, friendly.ids[i]);
+        for(int i = 0; i < enemy.size; i++) maxID = Math.max(maxID, enemy.ids[i]);
+        if(friendlySlot.length < maxID + 1) {
+            friendlySlot = new int[maxID + 1];
+            enemySlot = new int[maxID + 1];
+        }
+        Arrays.fill(friendlySlot, -1);
+        Arrays.fill(enemySlot, -1);
+        for(int i = 0; i < friendly.size; i++) friendlySlot[friendly.ids[i]] = i;
+        for(int i = 0; i < enemy.size; i++) enemySlot[enemy.ids[i]] = i;
+        if(attackers.length < enemy.size) attackers = new int[enemy.size];
+        Arrays.fill(attackers, 0, enemy.size, 0);
+        if(targets.length < friendly.size) targets = new int[friendly.size];
+        Arrays.fill(targets, 0, friendly.size, -1);
 
-        for(UnitView unit: state.getUnits(0)) friendly.add(new QLUnit(unit));
-        for(UnitView unit: state.getUnits(1)) enemy.add(new QLUnit(unit));
+        int pairs = friendly.size * enemy.size;
+        if(cached.length < pairs) {
+            features = new float[pairs * NUM_FEATURES];
+            cached = new boolean[pairs];
+        } else {
+            Arrays.fill(cached, 0, pairs, false);
+        }
+
+        countNeighbors();
     }
 
-    public List<QLUnit> getFriendly() { return friendly; }
+    // returns the state to the pool it came from, after which it must not be used; does nothing if not pooled
+    public void release() {
+        if(pool != null) pool.release(this);
+    }
+
+    public int getXExtent() { return xExtent; }
+
+    public int getYExtent() { return yExtent; }
 
-    public List<QLUnit> getEnemy() { return enemy; }
+    public List<QLUnit> getFriendly() { return friendly.views; }
 
-    public Map<Integer, Integer> getTargets() { return targets; }
+    public List<QLUnit> getEnemy() { return enemy.views; }
 
     // returns the friendly footman with id = fid, or null if not found
     public QLUnit getF(int fid) {
-        for(QLUnit f: friendly)
-            if(f.getID() == fid) return f;
-        return null;
+        int slot = getFSlot(fid);
+        return slot < 0 ? null : friendly.views.get(slot);
     }
 
     // returns the enemy footman with id = eid, or null if not found
     public QLUnit getE(int eid) {
-        for(QLUnit e: enemy)
-            if(e.getID() == eid) return e;
-        return null;
+        int slot = getESlot(eid);
+        return slot < 0 ? null : enemy.views.get(slot);
     }
 
-    // sets a random enemy as the target of friendly footman with id = fid
-    public void setRandomTargetFor(int fid) {
-        int rand = QLearningAgent.getRng().nextInt(enemy.size());
-        int eid = enemy.get(rand).getID();
-        targets.put(fid, eid);
+    // returns the position of friendly footman with id = fid in the friendly list, or -1 if not found
+    public int getFSlot(int fid) {
+        int slot = fid >= 0 && fid < friendlySlot.length ? friendlySlot[fid] : -1;
+        return slot < friendly.size ? slot : -1;
     }
 
-    // sets enemy with id = fid as target for footman with id = fid
+    // returns the position of enemy footman with id = eid in the enemy list, or -1 if not found
+    public int getESlot(int eid) {
+        int slot = eid >= 0 && eid < enemySlot.length ? enemySlot[eid] : -1;
+        return slot < enemy.size ? slot : -1;
+    }
+
+    // sets a random enemy drawn from rng as the target of friendly footman with id = fid
+    public void setRandomTargetFor(int fid, Random rng) {
+        int rand = rng.nextInt(enemy.size);
+        int eid = enemy.ids[rand];
+        setTarget(fid, eid);
+    }
+
+    // sets enemy with id = eid as target for footman with id = fid, if that footman is in the state
     public void setTarget(int fid, int eid) {
-        targets.put(fid, eid);
+        int fs = getFSlot(fid);
+        if(fs < 0) return;
+        int last = targets[fs];
+        targets[fs] = eid;
+        if(last >= 0) {                                 // footman stops attacking its old target
+            int slot = getESlot(last);
+            if(slot >= 0) attackers[slot]--;
+        }
+        int slot = getESlot(eid);
+        if(slot >= 0) attackers[slot]++;
     }
 
-    // returns the id of the enemy that friendly footman with id = fid is targeting
-    public Integer getTargetFor(int fid) {
-        if(!targets.containsKey(fid)) return null;
-        return targets.get(fid);
+    // returns the id of the enemy that friendly footman with id = fid is targeting, or -1 if it has none
+    public int getTargetFor(int fid) {
+        int fs = getFSlot(fid);
+        return fs < 0 ? -1 : targets[fs];
     }
 
     // returns the number of friendly footmen targeting enemy with id = eid
     public int getNumAttackersFor(int eid) {
-        int attackers = 0;
-        for(Entry<Integer, Integer> e: targets.entrySet())
-            if(e.getValue() == eid) attackers++;
-        return attackers;
+        int slot = getESlot(eid);
+        return slot < 0 ? 0 : attackers[slot];
     }
 
     // returns the number of friendly units adjacent to the footman
     public int getFriendlyNeighborsFor(int id) {
-        int adjacent = 0;
-        QLUnit u = getF(id);                            // see if unit is friendly
-        if(u == null) u = getE(id);                     // see if unit is enemy
-        if(u == null) {                                 // error out if unit does not exist
-            System.err.printf("No unit #%d found for state\n", id);
+        countNeighbors();
+        return getUnit(id).getFriendlyNeighbors();
+    }
+
+    // returns the number of enemy units adjacent to the footman
+    public int getEnemyNeighborsFor(int id) {
+        countNeighbors();
+        return getUnit(id).getEnemyNeighbors();
+    }
+
+    // fills out with the feature values for a = ATTACK(fid, eid)
+    // all features except the number of attackers only depend on the snapshot, so they are
+    // computed once per pair and kept in the matrix; the number of attackers is read live
+    // since it changes as targets are assigned
+    public void getFeatures(int fid, int eid, float[] out) {
+        int fs = getFSlot(fid);
+        int es = getESlot(eid);
+        if(fs < 0 || es < 0) {                          // error out if either unit does not exist
+            System.err.printf("No pair (%d,%d) found for state\n", fid, eid);
             System.exit(1);
         }
 
-        for(QLUnit f: friendly) {
-            if(f.getID() == id) continue;               // don't count self
-            if(f.getLoc().distanceSq(u.getLoc()) <= 2d)
-                adjacent++;                             // adjacent if distance squared <= 2
+        int base = score(fs, es);
+        System.arraycopy(features, base, out, 0, NUM_FEATURES);
+        out[4] = (float) attackers[es];
+    }
+
+    // fills out with the features of attacking every enemy, in enemy list order, for friendly footman
+    // with id = fid; the block is column-major, feature i of the j-th enemy is at out[i * E + j]
+    public void getFeatureBlock(int fid, float[] out) {
+        int fs = getFSlot(fid);
+        if(fs < 0) {                                    // error out if unit does not exist
+            System.err.printf("No unit #%d found for state\n", fid);
+            System.exit(1);
         }
+        for(int es = 0; es < enemy.size; es++) {
+            int base = score(fs, es);
+            for(int i = 0; i < NUM_FEATURES; i++)
+                out[i * enemy.size + es] = features[base + i];
+            out[4 * enemy.size + es] = (float) attackers[es];
+        }
+    }
 
-        return adjacent;
+    // fills out with the features of every friendly x enemy pair in one column-major block,
+    // feature i of friendly slot fs attacking enemy slot es is at out[i * F * E + fs * E + es]
+    public void getFeatureGrid(float[] out) {
+        int pairs = friendly.size * enemy.size;
+        for(int fs = 0; fs < friendly.size; fs++) {
+            for(int es = 0; es < enemy.size; es++) {
+                int pair = fs * enemy.size + es;
+                int base = score(fs, es);
+                for(int i = 0; i < NUM_FEATURES; i++)
+                    out[i * pairs + pair] = features[base + i];
+                out[4 * pairs + pair] = (float) attackers[es];
+            }
+        }
     }
 
-    // returns the number of enemy units adjacent to the footman
-    public int getEnemyNeighborsFor(int id) {
-        int adjacent = 0;
+    // makes sure the features of the pair are in the matrix, returns where they start
+    private int score(int fs, int es) {
+        int pair = fs * enemy.size + es;
+        int base = pair * NUM_FEATURES;
+        if(!cached[pair]) {
+            countNeighbors();
+            int dx = friendly.x[fs] - enemy.x[es];
+            int dy = friendly.y[fs] - enemy.y[es];
+
+            // first feature is constant so w0 is not modified
+            features[base]     = 1f;
+            features[base + 1] = (float) friendly.hp[fs];
+            features[base + 2] = (float) enemy.hp[es];
+            features[base + 3] = (float) (dx * dx + dy * dy);
+            features[base + 5] = (float) friendly.friendlyNeighbors[fs];
+            features[base + 6] = (float) friendly.enemyNeighbors[fs];
+            features[base + 7] = (float) enemy.friendlyNeighbors[es];
+            features[base + 8] = (float) enemy.enemyNeighbors[es];
+            cached[pair] = true;
+        }
+        return base;
+    }
+
+    // caches the number of adjacent friendly and enemy units on every unit in one pass
+    public void countNeighbors() {
+        if(counted) return;
+        for(int i = 0; i < friendly.size; i++) {        // don't count self
+            friendly.friendlyNeighbors[i] = countAround(friendlyGrid, friendly.x[i], friendly.y[i]) - 1;
+            friendly.enemyNeighbors[i] = countAround(enemyGrid, friendly.x[i], friendly.y[i]);
+        }
+        for(int i = 0; i < enemy.size; i++) {
+            enemy.friendlyNeighbors[i] = countAround(friendlyGrid, enemy.x[i], enemy.y[i]);
+            enemy.enemyNeighbors[i] = countAround(enemyGrid, enemy.x[i], enemy.y[i]) - 1;
+        }
+        counted = true;
+    }
+
+    // returns the friendly or enemy unit with the given id, erroring out if it does not exist
+    private QLUnit getUnit(int id) {
         QLUnit u = getF(id);                            // see if unit is friendly
         if(u == null) u = getE(id);                     // see if unit is enemy
         if(u == null) {                                 // error out if unit does not exist
             System.err.printf("No unit #%d found for state\n", id);
             System.exit(1);
         }
+        return u;
+    }
 
-        for(QLUnit e: enemy) {
-            if(e.getID() == id) continue;               // don't count self
-            if(e.getLoc().distanceSq(u.getLoc()) <= 2d)
-                adjacent++;                             // adjacent if distance squared <= 2
-        }
-
+    // sums the grid over the 3x3 block centered on (x, y)
+    // units are adjacent if distance squared <= 2, which is exactly that block
+    private int countAround(int[] grid, int x, int y) {
+        int adjacent = 0;
+        for(int j = Math.max(0, y - 1); j <= Math.min(yExtent - 1, y + 1); j++)
+            for(int i = Math.max(0, x - 1); i <= Math.min(xExtent - 1, x + 1); i++)
+                adjacent += grid[cell(i, j)];
         return adjacent;
     }
 
+    // index of the tile at (x, y) in the occupancy grids
+    private int cell(int x, int y) { return y * xExtent + x; }
+
     // copy over target mapping from another state for units in common
     public void copyTargetsFrom(QLState s) {
-        for(Entry<Integer, Integer> e: s.targets.entrySet())
-            if(getF(e.getKey()) != null &&
-               getE(e.getValue()) != null)
-                targets.put(e.getKey(), e.getValue());
+        for(int fs = 0; fs < s.friendly.size; fs++)
+            if(s.targets[fs] >= 0 &&
+               getESlot(s.targets[fs]) >= 0)
+                setTarget(s.friendly.ids[fs], s.targets[fs]);
     }
 
     // print the lists of friendly and enemy footmen in two columns
     public void print() {
         String str = String.format("%-15s%7s%-15s\n", "FRIENDLY", "", "ENEMY");
         int i = 0;
-        while(i < friendly.size() || i < enemy.size()) {
+        while(i < friendly.size || i < enemy.size) {
             // friendly footman in first column
-            QLUnit f = friendly.size() > i ? friendly.get(i) : null;
+            QLUnit f = friendly.size > i ? friendly.views.get(i) : null;
             if(f != null) {
                 str += f;
                 // print the friendly footman's target
-                Integer t = getTargetFor(f.getID());
-                str += t == null ? String.format("%7s", "") : String.format(" -> %-2d ", t);
+                int t = targets[i];
+                str += t < 0 ? String.format("%7s", "") : String.format(" -> %-2d ", t);
             } else str += String.format("%-22s", "");
 
             // enemy footman in second column
-            QLUnit e = enemy.size() > i ? enemy.get(i) : null;
+            QLUnit e = enemy.size > i ? enemy.views.get(i) : null;
             if(e != null) str += e;
 
             str += "\n";
@@ -144,4 +351,62 @@ public class QLState {
         }
         System.out.print(str);
     }
+
+    // packed storage for the units of one side, in parallel arrays indexed by slot
+    static class Units {
+
+        int                         size;
+        int[]                       ids;
+        int[]                       hp;
+        int[]                       x;
+        int[]                       y;
+        int[]                       friendlyNeighbors;
+        int[]                       enemyNeighbors;
+
+        private boolean             isFriendly;
+        private QLUnit[]            allViews;   // one view per slot, kept as the arrays grow
+        List<QLUnit>                views;      // views of the slots in use
+
+        Units(boolean isFriendly) {
+            this.isFriendly = isFriendly;
+            ids = new int[0];
+            hp = new int[0];
+            x = new int[0];
+            y = new int[0];
+            friendlyNeighbors = new int[0];
+            enemyNeighbors = new int[0];
+            allViews = new QLUnit[0];
+            views = new ArrayList<QLUnit>();
+        }
+
+        void clear() {
+            size = 0;
+            views.clear();
+        }
+
+        void add(int id, int hp, int x, int y) {
+            if(size == ids.length) grow();
+            ids[size] = id;
+            this.hp[size] = hp;
+            this.x[size] = x;
+            this.y[size] = y;
+            views.add(allViews[size]);
+            size++;
+        }
+
+        private void grow() {
+            int capacity = Math.max(16, 2 * ids.length);
+            ids = Arrays.copyOf(ids, capacity);
+            hp = Arrays.copyOf(hp, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            friendlyNeighbors = Arrays.copyOf(friendlyNeighbors, capacity);
+            enemyNeighbors = Arrays.copyOf(enemyNeighbors, capacity);
+            int old = allViews.length;
+            allViews = Arrays.copyOf(allViews, capacity);
+            for(int i = old; i < capacity; i++) allViews[i] = new QLUnit(this, i);
+        }
+
+        boolean isFriendly() { return isFriendly; }
+    }
 }
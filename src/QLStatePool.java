@@ -0,0 +1,41 @@
+//
+// QLStatePool.java
+//
+// Pool of QLStates that are refilled instead of reallocated each step
+// - A step only needs the current and last snapshot, so a pool settles at two or three states
+//   whose unit arrays, grids and feature matrices are reused for the rest of the run
+// - Not thread safe, each agent or simulator keeps its own pool
+//
+
+import edu.cwru.sepia.environment.model.state.State.StateView;
+
+import java.util.ArrayDeque;
+
+public class QLStatePool {
+
+    private ArrayDeque<QLState> free;   // released states, ready to be refilled
+
+    public QLStatePool() {
+        free = new ArrayDeque<QLState>();
+    }
+
+    // returns an empty state for a map of the given extent, to be filled and built by the caller
+    public QLState acquire(int xExtent, int yExtent) {
+        QLState qls = free.poll();
+        if(qls == null) qls = new QLState(this);
+        qls.clear(xExtent, yExtent);
+        return qls;
+    }
+
+    // returns a built snapshot of a SEPIA state
+    public QLState snapshot(StateView state) {
+        QLState qls = free.poll();
+        if(qls == null) qls = new QLState(this);
+        qls.read(state);
+        return qls;
+    }
+
+    void release(QLState qls) {
+        free.push(qls);
+    }
+}
@@ -3,32 +3,37 @@
 //
 // Data structure representing a single unit
 // Stores its unit ID, HP, and location
+// - A view onto one slot of a QLState's packed unit arrays, so it is only valid
+//   until the state is cleared or released back to its pool
+// - The location is read with getX / getY, so reading it never allocates
 //
 
-import edu.cwru.sepia.environment.model.state.Unit.UnitView;
-
-import java.awt.Point;
-
 public class QLUnit {
 
-    private int ID;
-    private int HP;
-    private Point loc;
+    private QLState.Units units;    // packed arrays of the side the unit is on
+    private int slot;               // position of the unit in those arrays
 
-    public QLUnit(UnitView unit) {
-        ID = unit.getID();
-        HP = unit.getHP();
-        loc = new Point(unit.getXPosition(), unit.getYPosition());
+    QLUnit(QLState.Units units, int slot) {
+        this.units = units;
+        this.slot = slot;
     }
 
-    public int getID() { return ID; }
+    public int getID() { return units.ids[slot]; }
+
+    public int getHP() { return units.hp[slot]; }
+
+    public int getX() { return units.x[slot]; }
+
+    public int getY() { return units.y[slot]; }
+
+    public int getFriendlyNeighbors() { return units.friendlyNeighbors[slot]; }
 
-    public int getHP() { return HP; }
+    public int getEnemyNeighbors() { return units.enemyNeighbors[slot]; }
 
-    public Point getLoc() { return loc; }
+    public boolean isFriendly() { return units.isFriendly(); }
 
     @Override
     public String toString() {
-        return String.format("#%-2d(%-2d,%-2d):%2dHP", ID, loc.x, loc.y, HP);
+        return String.format("#%-2d(%-2d,%-2d):%2dHP", getID(), getX(), getY(), getHP());
     }
 }
@@ -5,6 +5,11 @@
 // - Starts with a policy of randomly weighted features
 // - Plays a set of episodes during a training session to execute Q-learning
 // - Freezes the policy and plays a set of episodes during an evaluation session
+// - Training and evaluation blocks, epsilon and the learning rate follow a TrainingSchedule, which can
+//   adapt them and stop early once the policy has converged
+// - Optionally writes every transition it learns from to binary trace files, for OfflineTrainer
+// - Optionally treats each target choice as a semi-Markov option: rewards are accumulated with
+//   discounting until the next event, and each footman is updated once when its option ends
 
 import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.action.ActionType;
@@ -14,8 +19,9 @@ import edu.cwru.sepia.environment.model.history.DamageLog;
 import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History.HistoryView;
 import edu.cwru.sepia.environment.model.state.State.StateView;
-import edu.cwru.sepia.util.Pair;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
@@ -24,337 +30,801 @@ public class QLearningAgent extends Agent {
 
     private static final long   serialVersionUID    = 0L;
 
-    private static Random       rng;
-    private static boolean      debug;
+    private boolean             debug;                  // per agent, so agents trained side by side do not share it
 
-    // q-learning constants
-    private static final float  DISCOUNT_FACTOR     = 0.9f;
-    private static final float  LEARNING_RATE       = 0.0001f;
-    private static final float  EPSILON             = 0.02f;
-    private static final int    NUM_FEATURES        = 9;
-    private static final int    TRAINING_EPS        = 10;
-    private static final int    EVALUATION_EPS      = 5;
+    private static final int    NUM_FEATURES        = QLState.NUM_FEATURES;
+    static final long           SEED                = 12345L;   // seed of the SEPIA agent's random stream
 
     // agent parameters
+    private float               discountFactor;
     private int                 maxEpisodes;            // max number of episodes to play
     private int                 numEpisodes;            // number of episodes played
+    private int                 offlinePasses;          // offline training the restored policy had, kept in checkpoints
+    private long                offlineTransitions;
     private int                 evalEpisodes;           // number of episodes left for evaluation
+    private int                 evalLength;             // number of episodes in the current evaluation
     private float               evalTotalReward;        // cumulative reward during evaluation
+    private float               lastAvgReward;          // average reward of the last evaluation
+    private int                 evaluations;            // number of evaluations finished
+    private float               epsilon;                // probability of exploring, set by the schedule
+    private float               learningRate;           // set by the schedule
+    private TrainingSchedule    schedule;               // lengths of training and evaluation blocks, and when to stop
     private boolean             freezeQ;                // do not update Q when set to true
-    private List<Float>         weights;                // weights of features to learn
+    private boolean             finished;               // set once the last evaluation after maxEpisodes is done
+    private boolean             quiet;                  // do not print progress when set to true
+    private File                checkpoint;             // policy file saved after each evaluation, null if not saving
+    private AgentMetrics        metrics;                // latency and throughput of this agent, also exposed over JMX
+    private File                metricsFile;            // file metrics are appended to after each evaluation, null if not dumping
+    private ReplayBuffer        replay;                 // past transitions to learn from, null to learn from each step once
+    private int                 replayBatch;            // transitions replayed after each step
+    private TargetAssigner      assigner;               // joint target assignment, null to choose targets per footman
+    private CombatEvents        events;                 // combat logs of the current step, indexed by unit id
+    private boolean             smdp;                   // update once per option at event points instead of every step
+    private long                deadline;               // time budget of a middle step in ns, 0 for none; see prioritize
+    private TraceWriter         trace;                  // transitions written for offline training, null if not tracing
+    private int                 episodeStep;            // middle steps played this episode
+    private float[]             parts;                  // reward of the last step, decomposed
+    private int[]               order;                  // friendly slots of the last state, in the order they are handled
+    private float[]             weights;                // weights of features to learn
+    private Random              rng;                    // random stream of this agent
+    private SharedWeights       shared;                 // weights shared with other workers, null when training alone
+    private float[]             pulled;                 // local copy of the shared weights at the start of the step
+
+    // scratch buffers reused across steps so scoring and updates do not allocate
+    private float[]             features;               // feature vector of the action being updated
+    private float[]             scratch;                // feature vector of the action being scored
+    private float[]             next;                   // feature vector of the greedy action in the next state
+    private float[]             gradient;               // summed gradient of a replayed minibatch, averaged when applied
+    private float               qMax;                   // max Q score found by the last call to getQMaxTarget
+    private float[]             block;                  // features of every target of a footman, column-major
+    private float[]             qValues;                // Q score of every target of a footman
+    private int[]               bestTargets;            // greedy target for the next state, by its friendly slot, -1 if not scored
+    private Map<Integer, Action> actions;               // actions handed to SEPIA, refilled each step
+    private Action[]            attacks;                // last action issued to each friendly footman, by id
+    private int[]               attackTargets;          // enemy id each cached action targets, by friendly id
+
+    // running options of the friendly footmen, indexed by unit id, used when smdp is set
+    private float[]             optionFeatures;         // features of the action chosen when the option started
+    private float[]             optionReward;           // discounted reward collected since the option started
+    private float[]             optionDiscount;         // discountFactor ^ steps since the option started
+    private float[]             optionParts;            // optionReward decomposed, TraceWriter.REWARD_PARTS per footman
+    private QScorer             scorer;                 // SIMD scorer when the Vector API is available
 
     // episode parameters
     private float               episodeReward;          // current total reward for this episode
     private QLState             lastQls;                // cache the last state for comparing to current
+    private QLStatePool         states;                 // snapshots of SEPIA states, refilled each step
 
     public QLearningAgent(int playernum, String[] args) {
-        super(playernum);
-
-        rng                     = new Random(12345L);   // seed the RNG for consistent testing
+        this(playernum, parseArgs(args), new Random(SEED));     // seed the RNG for consistent testing
+    }
 
-        // parse argument and handle errors
-        if(args.length > 0) {
-            try {
-                maxEpisodes     = Integer.parseInt(args[0]);
-                if(maxEpisodes < 1) printUsage();       // first arg must be > 0
-            } catch(NumberFormatException e) {          // first arg must be a number
-                e.printStackTrace();
-                printUsage();
-            }
+    // creates an agent from an already parsed configuration drawing from its own random stream,
+    // e.g. one point of a hyperparameter sweep or a parallel worker
+    public QLearningAgent(int playernum, QLConfig config, Random rng) {
+        super(playernum);
 
-            debug               = args.length > 1 && Boolean.parseBoolean(args[1]);
-        } else printUsage();
+        this.rng                = rng;
+
+        maxEpisodes             = config.episodes;
+        debug                   = config.debug;
+        quiet                   = config.quiet;
+        checkpoint              = config.checkpoint;
+        metricsFile             = config.metrics;
+        replayBatch             = config.replay;
+        assigner                = config.cap > 0 ? new TargetAssigner(config.cap) : null;
+        smdp                    = config.smdp;
+        deadline                = config.deadline * 1000L;
+        trace                   = config.trace != null ? new TraceWriter(config.trace, NUM_FEATURES) : null;
+        discountFactor          = config.discountFactor;
+        schedule                = new TrainingSchedule(config.adaptive, config.epsilon, config.learningRate,
+                                                       config.trainingEps, config.evaluationEps);
 
         // initialize agent parameters
         numEpisodes             = 0;
         evalEpisodes            = 0;
         evalTotalReward         = 0f;
+        epsilon                 = schedule.getEpsilon();
+        learningRate            = schedule.getLearningRate();
         freezeQ                 = false;
-        weights                 = new ArrayList<Float>();
-        for(int i = 0; i < NUM_FEATURES; i++)
-            weights.add(rng.nextFloat() * 2f - 1f);    // set initial weights to random value between -1 and 1
-        printWeights();
+        finished                = false;
+        weights                 = randomWeights(rng);
+        pulled                  = new float[NUM_FEATURES];
+        features                = new float[NUM_FEATURES];
+        scratch                 = new float[NUM_FEATURES];
+        block                   = new float[0];
+        qValues                 = new float[0];
+        bestTargets             = new int[0];
+        actions                 = new HashMap<Integer, Action>();
+        attacks                 = new Action[0];
+        attackTargets           = new int[0];
+        optionFeatures          = new float[0];
+        optionReward            = new float[0];
+        optionDiscount          = new float[0];
+        optionParts             = new float[0];
+        parts                   = new float[TraceWriter.REWARD_PARTS];
+        order                   = new int[0];
+        scorer                  = QScorer.create();
+        next                    = new float[NUM_FEATURES];
+        gradient                = new float[NUM_FEATURES];
+        replay                  = replayBatch > 0 ? new ReplayBuffer(config.replayCapacity, NUM_FEATURES) : null;
+        events                  = new CombatEvents();
+        states                  = new QLStatePool();
+        metrics                 = new AgentMetrics();
+        metrics.register();
+        if(!quiet) printWeights();
         normalizeWeights();
 
-        System.out.printf("Q-Learning Agent initialized for %d episodes\n", maxEpisodes);
+        // warm start from the last checkpoint if there is one
+        if(checkpoint != null && checkpoint.exists()) {
+            try {
+                restore(PolicyCheckpoint.load(checkpoint));
+                if(!quiet) {
+                    System.out.printf("Restored policy from %s after %d episodes", checkpoint, numEpisodes);
+                    if(offlinePasses > 0)
+                        System.out.printf(" and %d offline passes over %d transitions", offlinePasses, offlineTransitions);
+                    System.out.println();
+                    printWeights();
+                }
+            } catch(IOException e) {                    // fall back to the random weights
+                e.printStackTrace();
+            }
+        }
+
+        schedule.startTraining(weights);
+        if(!quiet) System.out.printf("Q-Learning Agent initialized for %d episodes, scoring with %s\n",
+                maxEpisodes, scorer.getName());
+    }
+
+    // parses the agent arguments, printing usage and exiting if they are invalid
+    private static QLConfig parseArgs(String[] args) {
+        if(args.length == 0) printUsage();
+        try {
+            return QLConfig.parse(args);
+        } catch(IllegalArgumentException e) {           // includes malformed numbers
+            e.printStackTrace();
+            printUsage();
+            return null;
+        }
     }
 
     @Override
     public Map<Integer, Action> initialStep(StateView state, HistoryView stateHistory) {
+        long start = metrics.startStep();               // the snapshot and the actions count towards the step
+        if(lastQls != null) lastQls.release();          // last state of the previous episode
+        translateActions(playInitialStep(states.snapshot(state)));
+        metrics.endInitialStep(start);
+        return actions;
+    }
+
+    // chooses initial targets for the footmen in qls and caches it as the last state
+    // does not depend on SEPIA views so it can be driven by benchmarks and other harnesses
+    QLState initialStep(QLState qls) {
+        long start = metrics.startStep();
+        playInitialStep(qls);
+        metrics.endInitialStep(start);
+        return qls;
+    }
+
+    private QLState playInitialStep(QLState qls) {
         // initialize episode parameters
         episodeReward = 0f;
-
-        // initialize step parameters
-        QLState qls = new QLState(state);
+        episodeStep = 0;
 
         if(debug) System.out.printf("Initial step:\n");
 
+        pullWeights();
+
         // analyze the state and determine next action for each footman
         for(QLUnit f: qls.getFriendly()) {
             int fid = f.getID();
-            // choose a random target with probability EPSILON
-            if(rng.nextFloat() < EPSILON) qls.setRandomTargetFor(fid);
+            // choose a random target with probability epsilon
+            if(rng.nextFloat() < epsilon) qls.setRandomTargetFor(fid, rng);
             // otherwise choose greedy option (target footman with best Q score for current policy)
-            else qls.setTarget(fid, getQMaxTarget(qls, fid).b);
+            else if(assigner == null) qls.setTarget(fid, getQMaxTarget(qls, fid));
         }
 
+        if(assigner != null) assign(qls, null, 0L);    // greedy options are chosen jointly
+
+        if(smdp) startOptions(qls);
         lastQls = qls;                                  // cache this state
         if(debug) qls.print();
-
-        return translateActions(qls);
+        return qls;
     }
 
     @Override
     public Map<Integer, Action> middleStep(StateView state, HistoryView stateHistory) {
-        // initialize step parameters
-        Map<Integer, Action> actions = new HashMap<Integer, Action>();
-        Map<Integer, Integer> bestTargets = new HashMap<Integer, Integer>();
+        // the snapshot and the actions count towards the step, and the snapshot towards its deadline
+        long start = metrics.startStep();
         int step = state.getTurnNumber();
-        QLState qls = new QLState(state);
+        if(debug) System.out.printf("\nStep %d:\n", step);
+
+        QLState last = lastQls;
+        QLState qls = states.snapshot(state);
         // get the combat logs for the last step
         List<DamageLog> damageLogs = stateHistory.getDamageLogs(step - 1);
         List<DeathLog> deathLogs = stateHistory.getDeathLogs(step - 1);
-        // mark that event has occurred if any friendly units took damage or enemies died
-        boolean eventOccurred = false;
-        for(DamageLog log: damageLogs) {
-            if(log.getDefenderController() == 0) {
-                eventOccurred = true;
-                break;
-            }
-        }
 
-        if(!eventOccurred) {
-            for(DeathLog log: deathLogs) {
-                if(log.getController() == 1) {
-                    eventOccurred = true;
-                    break;
-                }
-            }
-        }
+        // only issue new actions when targets were reallocated
+        boolean reallocated = playMiddleStep(qls, damageLogs, deathLogs, start);
+        last.release();                                 // qls is the last state from now on
+        if(reallocated) translateActions(qls);
+        else actions.clear();
+        metrics.endMiddleStep(start);
+        return actions;
+    }
 
-        if(debug) System.out.printf("\nStep %d:\n", step);
+    // learns from the combat logs of the last step and chooses targets for the footmen in qls
+    // returns true if targets were reallocated, false if they were carried over from the last state
+    boolean middleStep(QLState qls, List<DamageLog> damageLogs, List<DeathLog> deathLogs) {
+        long start = metrics.startStep();
+        boolean reallocated = playMiddleStep(qls, damageLogs, deathLogs, start);
+        metrics.endMiddleStep(start);
+        return reallocated;
+    }
+
+    // start is the System.nanoTime() the step began at, which the deadline counts from
+    private boolean playMiddleStep(QLState qls, List<DamageLog> damageLogs, List<DeathLog> deathLogs, long start) {
+
+        // initialize step parameters
+        episodeStep++;
+        int numF = qls.getFriendly().size();
+        if(bestTargets.length < numF) bestTargets = new int[numF];
+        Arrays.fill(bestTargets, 0, numF, -1);
+        pullWeights();
+        // index the combat logs by unit id
+        events.update(damageLogs, deathLogs);
+        // mark that event has occurred if any friendly units took damage or enemies died
+        boolean eventOccurred = events.isEventPoint();
 
         // decompose reward for each footman and determine best target for next move
-        for(QLUnit f: lastQls.getFriendly()) {
-            boolean died = false;                       // did the friendly footman die this turn?
+        // with a deadline, footmen whose target died go first, then those that took damage
+        List<QLUnit> friendly = lastQls.getFriendly();
+        prioritize(friendly);
+        boolean outOfTime = false;
+        for(int k = 0; k < friendly.size(); k++) {
+            QLUnit f = friendly.get(order[k]);
             int fid = f.getID();                        // friendly footman id
             int tid = lastQls.getTargetFor(fid);        // enemy target id
+            boolean died = events.died(fid);            // did the friendly footman die this turn?
 
-            float reward = -0.1f;                       // each step costs -0.1
-
-            if(debug) System.out.printf("Reward for ATTACK(%d,%d) = %.1f", fid, tid, reward);
-
-            // check for damage dealt / taken between fid and tid
-            for(DamageLog log: damageLogs) {
-                if(log.getAttackerID() == fid) {
-                    reward += (float)log.getDamage();   // damage dealt rewards +damage
-                    if(debug) System.out.printf(" + %d", log.getDamage());
-                }
-                if(log.getDefenderID() == fid) {
-                    reward -= (float)log.getDamage();   // damage taken costs -damage
-                    if(debug) System.out.printf(" - %d", log.getDamage());
-                }
-            }
+            float reward = getReward(fid, tid, died);
+            episodeReward += reward;                    // accumulate reward
 
-            // check for death of fid and tid
-            for(DeathLog log: deathLogs) {
-                if(log.getDeadUnitID() == tid) {
-                    reward += 100f;                     // killing enemy rewards +100
-                    if(debug) System.out.print(" + 100");
-                }
-                if(log.getDeadUnitID() == fid) {
-                    reward -= 100f;                     // dying costs -100
-                    died = true;
-                    if(debug) System.out.print(" - 100");
-                }
+            float discount = discountFactor;            // discount of the next state's Q score
+            if(smdp) {                                  // collect the reward into the footman's running option
+                optionReward[fid] += optionDiscount[fid] * reward;
+                for(int i = 0; i < TraceWriter.REWARD_PARTS; i++)
+                    optionParts[fid * TraceWriter.REWARD_PARTS + i] += optionDiscount[fid] * parts[i];
+                optionDiscount[fid] *= discountFactor;
+                if(!eventOccurred && !died) continue;   // option goes on, nothing to learn yet
+                reward = optionReward[fid];
+                discount = optionDiscount[fid];
+                System.arraycopy(optionParts, fid * TraceWriter.REWARD_PARTS, parts, 0, TraceWriter.REWARD_PARTS);
+                System.arraycopy(optionFeatures, fid * NUM_FEATURES, features, 0, NUM_FEATURES);
+            } else {
+                lastQls.getFeatures(fid, tid, features); // reuses features scored last step
             }
+            float qLast = Q(features);
+            metrics.countQEvaluations(1);
+            float qNext;
+            int nextTarget = -1;                        // target scored for the next state, -1 if fid died
 
-            if(debug) System.out.printf(" = %.1f\n", reward);
-
-            episodeReward += reward;                    // accumulate reward
-
-            float qLast = Q(lastQls, fid, tid);
-            float qMax;
-            int bestTarget;
+            if(!outOfTime && deadline > 0) outOfTime = System.nanoTime() - start >= deadline;
 
             if(died) {
-                qMax = qLast;
+                qNext = qLast;
+                System.arraycopy(features, 0, next, 0, NUM_FEATURES);
+            } else if(outOfTime && !events.died(tid)) { // no time to score every target, keep this one
+                qls.getFeatures(fid, tid, next);
+                qNext = Q(next);
+                metrics.countQEvaluations(1);
+                nextTarget = tid;
             } else {
                 // identify best targets for next move
-                Pair<Float, Integer> qMaxTarget = getQMaxTarget(qls, fid);
-                qMax = qMaxTarget.a;
-                bestTarget = qMaxTarget.b;
-                bestTargets.put(fid, bestTarget);
+                int bestTarget = getQMaxTarget(qls, fid);
+                bestTargets[qls.getFSlot(fid)] = bestTarget;
+                qNext = qMax;
+                nextTarget = bestTarget;
+                if(replay != null || trace != null) qls.getFeatures(fid, bestTarget, next);
             }
-
-            // update the Q function with feedback
-            if(!freezeQ) {
-                if(debug) System.out.printf("Difference = %.1f + %.1f * %.3f - %.3f = ", reward, DISCOUNT_FACTOR, qMax, qLast);
-                float difference = reward + DISCOUNT_FACTOR * qMax - qLast;
+            // evaluation episodes are greedy and share the training episode counter, so they are not traced
+            if(trace != null && !freezeQ) writeTrace(fid, tid, nextTarget, discount, reward);
+            // the replay buffer discounts by discountFactor, and Q is linear, so longer options scale next instead
+            if(replay != null && discount != discountFactor)
+                for(int i = 0; i < NUM_FEATURES; i++)
+                    next[i] *= discount / discountFactor;
+
+            if(!freezeQ && replay != null) {            // store the transition, learn from a minibatch below
+                replay.add(features, reward, next);
+            } else if(!freezeQ) {                       // update the Q function with feedback
+                if(debug) System.out.printf("Difference = %.1f + %.3f * %.3f - %.3f = ", reward, discount, qNext, qLast);
+                float difference = reward + discount * qNext - qLast;
                 if(debug) System.out.printf("%.5f\n", difference);
-                List<Float> features = getFeatures(lastQls, fid, tid);
                 // update weights for each feature
                 for(int i = 0; i < NUM_FEATURES; i++) {
-                    if(debug) System.out.printf("w%d = %.5f + %.5f * %.5f * %.1f = ", i, weights.get(i), LEARNING_RATE, difference, features.get(i));
-                    weights.set(i, weights.get(i) + LEARNING_RATE * difference * features.get(i));
-                    if(debug) System.out.printf("%.5f\n", weights.get(i));
+                    if(debug) System.out.printf("w%d = %.5f + %.5f * %.5f * %.1f = ", i, weights[i], learningRate, difference, features[i]);
+                    weights[i] += learningRate * difference * features[i];
+                    if(debug) System.out.printf("%.5f\n", weights[i]);
                 }
                 normalizeWeights();
+                metrics.countWeightUpdate();
             }
         }
 
+        if(!freezeQ && replay != null) replayMinibatch();
+        pushWeights();
+
         if(eventOccurred) {                             // reallocate targets at event point
-            for(QLUnit f: qls.getFriendly()) {
-                int fid = f.getID();
-                // choose a random target with probability EPSILON
-                if(rng.nextFloat() < EPSILON) qls.setRandomTargetFor(fid);
+            for(int fs = 0; fs < numF; fs++) {
+                int fid = qls.getFriendly().get(fs).getID();
+                // choose a random target with probability epsilon
+                if(rng.nextFloat() < epsilon) qls.setRandomTargetFor(fid, rng);
+                // footmen not reached before the deadline keep their last target
+                else if(bestTargets[fs] < 0) qls.setTarget(fid, lastQls.getTargetFor(fid));
                 // otherwise choose greedy option (target footman with best Q score for current policy)
-                else qls.setTarget(fid, bestTargets.get(fid));
+                else if(assigner == null) qls.setTarget(fid, bestTargets[fs]);
             }
 
-            actions = translateActions(qls);            // generate actions
+            if(assigner != null && !assign(qls, lastQls, deadline > 0 ? start + deadline : 0L))
+                outOfTime = true;                       // greedy options are chosen jointly, within what is left of the budget
+            if(smdp) startOptions(qls);
         } else {                                        // otherwise maintain same targets
             qls.copyTargetsFrom(lastQls);
         }
 
+        if(outOfTime) metrics.countDeadlineMiss();
         lastQls = qls;                                  // update last state
         if(debug) qls.print();
-
-        return actions;
+        return eventOccurred;
     }
 
     @Override
     public void terminalStep(StateView state, HistoryView stateHistory) {
+        terminalStep();
+        if(finished) System.exit(0);
+    }
+
+    // ends the current episode and advances the training / evaluation schedule
+    void terminalStep() {
+        metrics.countEpisode();
         if(evalEpisodes == 0) {
             if(debug) {
                 System.out.printf("Completed episode %d with reward %.1f\n", numEpisodes, episodeReward);
                 printWeights();
-            } else {
+            } else if(!quiet) {
                 System.out.print("|");
             }
             numEpisodes++;
-            if(numEpisodes % TRAINING_EPS == 0) {       // finished training
-                freezeQ = true;                         // stop Q from updating
-                evalEpisodes = EVALUATION_EPS;          // evaluate for next EVALUATION_EPS episodes
-                evalTotalReward = 0;                    // reset cumulative reward
+            if(numEpisodes % schedule.getTrainingEps() == 0) {  // finished training
+                evalLength = schedule.endTraining(weights);
+                epsilon = schedule.getEpsilon();
+                learningRate = schedule.getLearningRate();
+                if(evalLength > 0) {
+                    pullWeights();                      // evaluate the latest shared policy
+                    freezeQ = true;                     // stop Q from updating
+                    evalEpisodes = evalLength;          // evaluate for next evalLength episodes
+                    evalTotalReward = 0;                // reset cumulative reward
+                } else {                                // policy is unchanged since its last evaluation
+                    if(!quiet) {
+                        System.out.println();
+                        System.out.printf("Episodes Played: %d, Evaluation Skipped\n", numEpisodes);
+                    }
+                    endBlock();
+                }
             }
         } else {                                        // evaluation
             if(debug) System.out.printf("Completed evaluation episode with reward %.1f\n", episodeReward);
-            else System.out.print("*");
+            else if(!quiet) System.out.print("*");
             evalTotalReward += episodeReward;           // accumulate reward
+            schedule.recordEvaluation(episodeReward);
             if(--evalEpisodes == 0) {                   // finished evaluating
-                System.out.println();
                 freezeQ = false;
-                float avgReward = evalTotalReward / EVALUATION_EPS;
-                System.out.printf("Episodes Played: %d, Average Reward: %.1f\n", numEpisodes, avgReward);
+                float avgReward = evalTotalReward / evalLength;
+                lastAvgReward = avgReward;
+                evaluations++;
+                schedule.endEvaluation();
+                if(!quiet) {
+                    System.out.println();
+                    if(schedule.isAdaptive())
+                        System.out.printf("Episodes Played: %d, Average Reward: %.1f +/- %.1f (rolling %.1f +/- %.1f)\n",
+                                numEpisodes, avgReward, schedule.getBlockHalfWidth(),
+                                schedule.getRollingMean(), schedule.getRollingHalfWidth());
+                    else
+                        System.out.printf("Episodes Played: %d, Average Reward: %.1f\n", numEpisodes, avgReward);
+                }
                 if(debug) printWeights();
-                if(numEpisodes == maxEpisodes) System.exit(0);
+                endBlock();
             }
         }
     }
 
-    // returns a list of feature values for a = ATTACK(fid, eid)
-    private List<Float> getFeatures(QLState qls, int fid, int eid) {
-        ArrayList<Float> features = new ArrayList<Float>();
-        QLUnit f = qls.getF(fid);
-        QLUnit e = qls.getE(eid);
+    // saves progress at the end of a training and evaluation block and decides whether to go on
+    private void endBlock() {
+        saveCheckpoint();
+        dumpMetrics();
+        schedule.startTraining(weights);
+        if(numEpisodes >= maxEpisodes) finished = true;
+        else if(schedule.isConverged()) {
+            if(!quiet) System.out.printf("Converged after %d episodes\n", numEpisodes);
+            finished = true;
+        }
+        flushTrace();
+    }
+
+    // unregisters the agent's metrics MXBean and closes its trace file
+    // drivers that create many agents in one JVM call this once they are done with an agent
+    void close() {
+        metrics.unregister();
+        if(trace == null) return;
+        try {
+            trace.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        trace = null;
+    }
 
-        // first feature is constant so w0 is not modified
-        features.add(1f);
-        features.add((float) f.getHP());
-        features.add((float) e.getHP());
-        features.add((float) f.getLoc().distanceSq(e.getLoc()));
-        features.add((float) qls.getNumAttackersFor(eid));
-        features.add((float) qls.getFriendlyNeighborsFor(fid));
-        features.add((float) qls.getEnemyNeighborsFor(fid));
-        features.add((float) qls.getFriendlyNeighborsFor(eid));
-        features.add((float) qls.getEnemyNeighborsFor(eid));
-        return features;
+    // writes out buffered trace records, closing the trace file once the agent is finished
+    private void flushTrace() {
+        if(trace == null) return;
+        try {
+            if(finished) trace.close();
+            else trace.flush();
+        } catch(IOException e) {                        // traces are optional, keep playing
+            e.printStackTrace();
+            trace = null;
+        }
+    }
+
+    // returns the reward friendly footman with id = fid earned last step for attacking enemy with id = tid
+    // and stores its decomposition in parts
+    private float getReward(int fid, int tid, boolean died) {
+        parts[0] = -0.1f;                               // each step costs -0.1
+        parts[1] = 0f;
+        parts[2] = 0f;
+        parts[3] = 0f;
+        parts[4] = 0f;
+
+        if(debug) System.out.printf("Reward for ATTACK(%d,%d) = %.1f", fid, tid, parts[0]);
+
+        // check for damage dealt / taken by fid
+        int dealt = events.getDamageDealt(fid);
+        int taken = events.getDamageTaken(fid);
+        if(dealt > 0) {
+            parts[1] = (float)dealt;                    // damage dealt rewards +damage
+            if(debug) System.out.printf(" + %d", dealt);
+        }
+        if(taken > 0) {
+            parts[2] = -(float)taken;                   // damage taken costs -damage
+            if(debug) System.out.printf(" - %d", taken);
+        }
+
+        // check for death of fid and tid
+        if(events.died(tid)) {
+            parts[3] = 100f;                            // killing enemy rewards +100
+            if(debug) System.out.print(" + 100");
+        }
+        if(died) {
+            parts[4] = -100f;                           // dying costs -100
+            if(debug) System.out.print(" - 100");
+        }
+
+        float reward = parts[0];
+        for(int i = 1; i < TraceWriter.REWARD_PARTS; i++) reward += parts[i];
+        if(debug) System.out.printf(" = %.1f\n", reward);
+        return reward;
+    }
+
+    // writes the transition in features, next and parts to the trace, and stops tracing if that fails
+    private void writeTrace(int fid, int tid, int nextTarget, float discount, float reward) {
+        try {
+            trace.write(numEpisodes, episodeStep, fid, tid, nextTarget, discount, parts, reward, features, next);
+        } catch(IOException e) {                        // traces are optional, keep playing
+            e.printStackTrace();
+            trace = null;
+        }
+    }
+
+    // fills order with the slots of friendly, in list order without a deadline
+    // with one, footmen whose target died come first, then footmen that took damage, then the rest
+    // the deadline bounds rescoring and the joint assignment, except for footmen whose target died:
+    // they have no target to keep, so they are always rescored, which is why they go first
+    private void prioritize(List<QLUnit> friendly) {
+        int n = friendly.size();
+        if(order.length < n) order = new int[n];
+        int k = 0;
+        if(deadline > 0) {
+            for(int i = 0; i < n; i++)
+                if(targetDied(friendly.get(i))) order[k++] = i;
+            for(int i = 0; i < n; i++)
+                if(!targetDied(friendly.get(i)) && events.getDamageTaken(friendly.get(i).getID()) > 0) order[k++] = i;
+            for(int i = 0; i < n; i++)
+                if(!targetDied(friendly.get(i)) && events.getDamageTaken(friendly.get(i).getID()) == 0) order[k++] = i;
+        } else {
+            for(int i = 0; i < n; i++) order[i] = i;
+        }
+    }
+
+    private boolean targetDied(QLUnit f) {
+        return events.died(lastQls.getTargetFor(f.getID()));
+    }
+
+    // starts a new option for every friendly footman in qls with the target it was just given
+    private void startOptions(QLState qls) {
+        int maxID = -1;
+        for(QLUnit f: qls.getFriendly()) maxID = Math.max(maxID, f.getID());
+        if(optionReward.length < maxID + 1) {
+            optionFeatures = Arrays.copyOf(optionFeatures, (maxID + 1) * NUM_FEATURES);
+            optionParts = Arrays.copyOf(optionParts, (maxID + 1) * TraceWriter.REWARD_PARTS);
+            optionReward = Arrays.copyOf(optionReward, maxID + 1);
+            optionDiscount = Arrays.copyOf(optionDiscount, maxID + 1);
+        }
+        for(QLUnit f: qls.getFriendly()) {
+            int fid = f.getID();
+            qls.getFeatures(fid, qls.getTargetFor(fid), scratch);
+            System.arraycopy(scratch, 0, optionFeatures, fid * NUM_FEATURES, NUM_FEATURES);
+            optionReward[fid] = 0f;
+            optionDiscount[fid] = 1f;
+            Arrays.fill(optionParts, fid * TraceWriter.REWARD_PARTS, (fid + 1) * TraceWriter.REWARD_PARTS, 0f);
+        }
     }
 
     // normalize weights
     private void normalizeWeights() {
+        normalize(weights);
+    }
+
+    // scales the weights to sum to 1; also used by OfflineTrainer
+    static void normalize(float[] weights) {
         float total = 0;
-        for(float w: weights)
-            total += w;
+        for(int i = 0; i < weights.length; i++)
+            total += weights[i];
+        for(int i = 0; i < weights.length; i++)
+            weights[i] /= total;
+    }
+
+    // returns initial weights drawn from rng, each a random value between -1 and 1; also used by OfflineTrainer
+    static float[] randomWeights(Random rng) {
+        float[] weights = new float[NUM_FEATURES];
+        for(int i = 0; i < NUM_FEATURES; i++)
+            weights[i] = rng.nextFloat() * 2f - 1f;
+        return weights;
+    }
+
+    // assigns targets to the footmen in qls without one by solving for the best joint assignment
+    // stops bidding at stopAt (a System.nanoTime(), 0 for never), returns false if it did
+    private boolean assign(QLState qls, QLState last, long stopAt) {
+        metrics.countQEvaluations(qls.getFriendly().size() * qls.getEnemy().size());
+        return assigner.assign(qls, weights, last, stopAt);
+    }
+
+    // updates the weights from replayBatch transitions drawn uniformly from the replay buffer
+    // the gradient is averaged over the batch and applied once, followed by a single normalization,
+    // so the step size is learningRate whatever the batch size
+    private void replayMinibatch() {
+        if(replay.size() == 0) return;
+        Arrays.fill(gradient, 0f);
+        for(int b = 0; b < replayBatch; b++) {
+            float reward = replay.get(rng.nextInt(replay.size()), features, next);
+            float difference = reward + discountFactor * Q(next) - Q(features);
+            for(int i = 0; i < NUM_FEATURES; i++)
+                gradient[i] += difference * features[i];
+        }
+        metrics.countQEvaluations(2 * replayBatch);
+
+        for(int i = 0; i < NUM_FEATURES; i++)
+            weights[i] += learningRate * gradient[i] / replayBatch;
+        normalizeWeights();
+        metrics.countWeightUpdate();
+    }
+
+    // shares this agent's weights with other workers, starting from the shared values
+    void share(SharedWeights shared) {
+        this.shared = shared;
+        shared.read(weights);
+        System.arraycopy(weights, 0, pulled, 0, NUM_FEATURES);
+    }
+
+    // copies the shared weights into the local vector before scoring
+    // evaluation blocks keep the copy taken when they started, so they measure one frozen policy
+    private void pullWeights() {
+        if(shared == null || freezeQ) return;
+        shared.read(weights);
+        System.arraycopy(weights, 0, pulled, 0, NUM_FEATURES);
+    }
+
+    // adds the change this step made to the local weights onto the shared weights
+    // both vectors are normalized, so the shared weights stay (close to) normalized too
+    private void pushWeights() {
+        if(shared == null || freezeQ) return;
         for(int i = 0; i < NUM_FEATURES; i++)
-            weights.set(i, weights.get(i) / total);
+            pulled[i] = weights[i] - pulled[i];
+        shared.add(pulled);
+    }
+
+    // evaluate linear approximation Q function for the feature vector f(s, a)
+    private float Q(float[] f) {
+        return Q(weights, f);
     }
 
-    // evaluate linear approximation Q function for s = qls and a = ATTACK(fid, eid)
-    private float Q(QLState qls, int fid, int eid) {
+    // Q score of f under the given weights; also used by OfflineTrainer
+    static float Q(float[] weights, float[] f) {
         float q = 0;
-        List<Float> features = getFeatures(qls, fid, eid);
 
         // w0 + w * f(s, a)
-        for(int i = 0; i < NUM_FEATURES; i++)
-            q += weights.get(i) * features.get(i);
+        for(int i = 0; i < weights.length; i++)
+            q += weights[i] * f[i];
 
         return q;
     }
 
-    // returns a pair containing the max Q score for friendly footman with id = fid
-    // and the id of the enemy it should attack to achieve that score
-    private Pair<Float, Integer> getQMaxTarget(QLState qls, int fid) {
-        float qMax = Float.NEGATIVE_INFINITY;
-        Integer bestTarget = null;
-        for(QLUnit e: qls.getEnemy()) {                 // evaluate each enemy footman
-            int eid = e.getID();
-            float q = Q(qls, fid, eid);
-            if(q > qMax) {                              // found a better action, update
-                qMax = q;
-                bestTarget = eid;
-            }
+    // returns the id of the enemy friendly footman with id = fid should attack
+    // to achieve the max Q score, and stores that score in qMax
+    // all targets are scored in one batch so the scorer can use SIMD instructions
+    int getQMaxTarget(QLState qls, int fid) {
+        List<QLUnit> enemy = qls.getEnemy();
+        int n = enemy.size();
+        metrics.countQEvaluations(n);
+        if(qValues.length < n) {
+            block = new float[NUM_FEATURES * n];
+            qValues = new float[n];
         }
 
-        if(bestTarget == null) {                        // error out if no target found
+        qls.getFeatureBlock(fid, block);
+        scorer.score(weights, block, n, n, qValues);
+        int best = scorer.argMax(qValues, 0, n);
+
+        if(best < 0) {                                  // error out if no target found
             System.err.printf("Could not find target for F%d\n", fid);
             System.exit(1);
         }
 
-        return new Pair<Float, Integer>(qMax, bestTarget);
+        qMax = qValues[best];
+        return enemy.get(best).getID();
     }
 
     // generate SEPIA actions for targets mapped in the QLState
+    // the map is reused and an action is only rebuilt when its footman's target changed
     private Map<Integer, Action> translateActions(QLState qls) {
-        Map<Integer, Action> actions = new HashMap<Integer, Action>();
-        Map<Integer, Integer> targets = qls.getTargets();
-
-        for(int fid: targets.keySet()) {                // generate action for each targeting footman
-            int eid = targets.get(fid);
-            actions.put(fid, new TargetedAction(fid, ActionType.COMPOUNDATTACK, eid));
+        actions.clear();
+        for(QLUnit f: qls.getFriendly()) {              // generate action for each targeting footman
+            int fid = f.getID();
+            int eid = qls.getTargetFor(fid);
+            if(eid < 0) continue;
+            if(attacks.length <= fid) {
+                attacks = Arrays.copyOf(attacks, fid + 1);
+                attackTargets = Arrays.copyOf(attackTargets, fid + 1);
+            }
+            if(attacks[fid] == null || attackTargets[fid] != eid) {
+                attacks[fid] = new TargetedAction(fid, ActionType.COMPOUNDATTACK, eid);
+                attackTargets[fid] = eid;
+            }
+            actions.put(fid, attacks[fid]);
         }
 
         return actions;
     }
 
     @Override
-    public void savePlayerData(OutputStream outputStream) { }
+    public void savePlayerData(OutputStream outputStream) {
+        try {
+            toCheckpoint().write(outputStream);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
 
     @Override
-    public void loadPlayerData(InputStream inputStream) { }
+    public void loadPlayerData(InputStream inputStream) {
+        try {
+            restore(PolicyCheckpoint.read(inputStream));
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // snapshot of the current policy and the parameters it was trained with
+    private PolicyCheckpoint toCheckpoint() {
+        PolicyCheckpoint cp = new PolicyCheckpoint();
+        cp.numEpisodes = numEpisodes;
+        cp.discountFactor = discountFactor;
+        cp.learningRate = learningRate;
+        cp.epsilon = epsilon;
+        cp.trainingEps = schedule.getTrainingEps();
+        cp.evaluationEps = schedule.getEvaluationEps();
+        cp.offlinePasses = offlinePasses;
+        cp.offlineTransitions = offlineTransitions;
+        cp.weights = weights.clone();
+        return cp;
+    }
+
+    // continues from a checkpointed policy
+    private void restore(PolicyCheckpoint cp) throws IOException {
+        if(cp.weights.length != NUM_FEATURES)
+            throw new IOException("Checkpoint has " + cp.weights.length + " weights, expected " + NUM_FEATURES);
+        if(cp.discountFactor != discountFactor
+                || (!schedule.isAdaptive() && (cp.learningRate != learningRate || cp.epsilon != epsilon)))
+            System.err.println("Checkpoint was trained with different parameters");
+        schedule.resume(cp.epsilon, cp.learningRate);   // carry on from the decayed rates
+        epsilon = schedule.getEpsilon();
+        learningRate = schedule.getLearningRate();
+
+        System.arraycopy(cp.weights, 0, weights, 0, NUM_FEATURES);
+        numEpisodes = cp.numEpisodes;
+        offlinePasses = cp.offlinePasses;
+        offlineTransitions = cp.offlineTransitions;
+        if(numEpisodes >= maxEpisodes) {                // already trained, just evaluate
+            freezeQ = true;
+            evalEpisodes = schedule.getEvaluationEps();
+            evalLength = evalEpisodes;
+            evalTotalReward = 0;
+        }
+    }
+
+    // appends the current metrics to the metrics file, if there is one
+    private void dumpMetrics() {
+        if(metricsFile == null) return;
+        try {
+            metrics.dump(metricsFile);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-    private void printUsage() {
-        System.out.println("Usage: QLearningAgent [eps] [debug]");
+    AgentMetrics getMetrics() { return metrics; }
+
+    // combat history of the last middle step, indexed by unit id
+    CombatEvents getEvents() { return events; }
+
+    // saves the policy to the checkpoint file, if there is one
+    private void saveCheckpoint() {
+        if(checkpoint == null) return;
+        try {
+            toCheckpoint().save(checkpoint);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: QLearningAgent [eps] [debug] [checkpoint] [metrics] [replay] [cap] [smdp] [deadline] [adaptive] [key=value]...");
         System.out.println("\teps: number of episodes to run (must be > 0)");
         System.out.println("\tdebug: set to true to display debug messages");
+        System.out.println("\tcheckpoint: file to save the policy to after each evaluation and to resume from");
+        System.out.println("\tmetrics: file to append performance metrics to after each evaluation (.csv or .json)");
+        System.out.println("\treplay: minibatch size for experience replay, 0 to learn from each step once (default: 0)");
+        System.out.println("\tcap: attackers per enemy for joint target assignment, 0 to choose per footman (default: 0)");
+        System.out.println("\tsmdp: set to true to update once per target choice at event points instead of every step");
+        System.out.println("\tdeadline: time budget of a step in microseconds, 0 to score every target (default: 0)");
+        System.out.println("\tadaptive: set to true to decay epsilon and the learning rate, adapt evaluation and stop on convergence");
+        System.out.println("\tkey=value: sets any of the above by name (episodes for eps), or quiet, replayCapacity,");
+        System.out.println("\t\tdiscountFactor, learningRate, epsilon, trainingEps, evaluationEps, or trace (directory");
+        System.out.println("\t\tto write transitions to for OfflineTrainer, e.g. saves/test1)");
         System.exit(1);
     }
 
-    private void printWeights() {
+    void printWeights() {
         System.out.println("Weights for ATTACK(F,E):");
-        System.out.printf("%f\tw0\n", weights.get(0));
-        System.out.printf("%f\tHP of F\n", weights.get(1));
-        System.out.printf("%f\tHP of E\n", weights.get(2));
-        System.out.printf("%f\tSquare distance between F and E\n", weights.get(3));
-        System.out.printf("%f\tNumber of units attacking E\n", weights.get(4));
-        System.out.printf("%f\tNumber of friendly units adjacent to F\n", weights.get(5));
-        System.out.printf("%f\tNumber of enemy units adjacent to F\n", weights.get(6));
-        System.out.printf("%f\tNumber of friendly units adjacent to E\n", weights.get(7));
-        System.out.printf("%f\tNumber of enemy units adjacent to E\n", weights.get(8));
+        System.out.printf("%f\tw0\n", weights[0]);
+        System.out.printf("%f\tHP of F\n", weights[1]);
+        System.out.printf("%f\tHP of E\n", weights[2]);
+        System.out.printf("%f\tSquare distance between F and E\n", weights[3]);
+        System.out.printf("%f\tNumber of units attacking E\n", weights[4]);
+        System.out.printf("%f\tNumber of friendly units adjacent to F\n", weights[5]);
+        System.out.printf("%f\tNumber of enemy units adjacent to F\n", weights[6]);
+        System.out.printf("%f\tNumber of friendly units adjacent to E\n", weights[7]);
+        System.out.printf("%f\tNumber of enemy units adjacent to E\n", weights[8]);
     }
 
-    public static Random getRng() { return rng; }
+    // average reward of the last evaluation block, and the number of blocks evaluated so far
+    float getAverageReward() { return lastAvgReward; }
+
+    int getEvaluations() { return evaluations; }
+
+    float[] getWeights() { return weights; }
+
+    boolean isFinished() { return finished; }
 
-    public static boolean getDebug() { return debug; }
+    public boolean getDebug() { return debug; }
 }
@@ -0,0 +1,42 @@
+//
+// QScorer.java
+//
+// Batch evaluation of the linear Q function over many actions at once
+// - Features come in a column-major block: feature i of action j is at block[i * stride + j],
+//   so each feature is a contiguous row that can be loaded a SIMD vector at a time
+// - create() returns the Vector API scorer (vector/VectorQScorer.java) when it was compiled and
+//   the JVM runs with --add-modules jdk.incubator.vector, and the scalar scorer otherwise
+// - The vector module is not a dependency of the main module (it needs JDK 17, the agent only 8),
+//   so it is off unless enabled by hand on a JDK 17+ JVM:
+//     javac --add-modules jdk.incubator.vector -cp <agent classes> -d <vector classes> vector/VectorQScorer.java
+//     java --add-modules jdk.incubator.vector -cp <agent classes>:<vector classes>:... <main class>
+//   The agent prints the scorer it picked when it starts, unless it is quiet
+// - Both scorers sum the features in the same order as a scalar dot product, so they return the same Q values
+//
+
+public abstract class QScorer {
+
+    private static final String VECTOR_SCORER   = "VectorQScorer";
+
+    // writes Q(action j) = weights . features of j into q[j] for the first n actions of block
+    public abstract void score(float[] weights, float[] block, int stride, int n, float[] q);
+
+    // returns the index of the first max of q[from] .. q[to - 1], or -1 if the range is empty
+    public abstract int argMax(float[] q, int from, int to);
+
+    public String getName() { return getClass().getSimpleName(); }
+
+    // returns the fastest scorer this JVM can run
+    public static QScorer create() {
+        try {
+            return (QScorer) Class.forName(VECTOR_SCORER).getDeclaredConstructor().newInstance();
+        } catch(ClassNotFoundException e) {             // vector module not compiled or not on the classpath
+            return new ScalarQScorer();
+        } catch(NoClassDefFoundError e) {               // JVM started without --add-modules jdk.incubator.vector
+            return new ScalarQScorer();
+        } catch(ReflectiveOperationException e) {       // VectorQScorer is there but could not be built
+            e.printStackTrace();
+            return new ScalarQScorer();
+        }
+    }
+}
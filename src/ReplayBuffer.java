@@ -0,0 +1,52 @@
+//
+// ReplayBuffer.java
+//
+// Fixed-capacity ring buffer of transitions kept off the Java heap
+// - Each transition is packed into a direct ByteBuffer as floats: the features of the action
+//   taken f(s, a), the reward, and the features f(s', a') of the greedy action in the next state
+// - A footman that died stores f(s, a) as its next features, matching the online update
+// - Once full, new transitions overwrite the oldest ones
+//
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+public class ReplayBuffer {
+
+    private int                 numFeatures;
+    private int                 recordFloats;           // features, reward, next features
+    private int                 capacity;
+    private int                 size;                   // number of transitions stored
+    private int                 head;                   // slot the next transition is written to
+    private FloatBuffer         data;
+
+    public ReplayBuffer(int capacity, int numFeatures) {
+        this.capacity = capacity;
+        this.numFeatures = numFeatures;
+        recordFloats = 2 * numFeatures + 1;
+        data = ByteBuffer.allocateDirect(capacity * recordFloats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        size = 0;
+        head = 0;
+    }
+
+    public int size() { return size; }
+
+    public void add(float[] features, float reward, float[] next) {
+        int base = head * recordFloats;
+        for(int i = 0; i < numFeatures; i++) data.put(base + i, features[i]);
+        data.put(base + numFeatures, reward);
+        for(int i = 0; i < numFeatures; i++) data.put(base + numFeatures + 1 + i, next[i]);
+
+        head = (head + 1) % capacity;
+        if(size < capacity) size++;
+    }
+
+    // copies the features of transition i into features and next, and returns its reward
+    public float get(int i, float[] features, float[] next) {
+        int base = i * recordFloats;
+        for(int j = 0; j < numFeatures; j++) features[j] = data.get(base + j);
+        for(int j = 0; j < numFeatures; j++) next[j] = data.get(base + numFeatures + 1 + j);
+        return data.get(base + numFeatures);
+    }
+}
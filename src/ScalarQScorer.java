@@ -0,0 +1,31 @@
+//
+// ScalarQScorer.java
+//
+// Plain Java QScorer, used when the Vector API is not available
+//
+
+public class ScalarQScorer extends QScorer {
+
+    @Override
+    public void score(float[] weights, float[] block, int stride, int n, float[] q) {
+        for(int j = 0; j < n; j++) {
+            float sum = 0;
+            for(int i = 0; i < weights.length; i++)
+                sum += weights[i] * block[i * stride + j];
+            q[j] = sum;
+        }
+    }
+
+    @Override
+    public int argMax(float[] q, int from, int to) {
+        int best = -1;
+        float max = Float.NEGATIVE_INFINITY;
+        for(int j = from; j < to; j++) {
+            if(q[j] > max) {                            // keep the first of equal scores
+                max = q[j];
+                best = j;
+            }
+        }
+        return best;
+    }
+}
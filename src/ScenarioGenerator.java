@@ -0,0 +1,239 @@
+//
+// ScenarioGenerator.java
+//
+// Writes SEPIA map files for footman battles of any size
+// - Copies everything but the units from a hand-written map (rl_5fv5f.xml by default), so the
+//   players keep their full template lists, resources and supply like the maps SEPIA ships with
+// - Friendly footmen get ids 0 .. F-1 and enemy footmen F .. F+E-1, each with the Footman template of its player
+// - Formations: line (columns on every other row facing each other), block (tightly packed squares)
+//   and scatter (random free tiles in each half of the map)
+// - Map extent is picked to fit the armies when not given
+//
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+public class ScenarioGenerator {
+
+    public static final String  DEFAULT_TEMPLATE    = "rl_5fv5f.xml";
+
+    private static final int    MIN_X_EXTENT        = 25;   // extent of the hand-written maps
+    private static final int    MIN_Y_EXTENT        = 19;
+    private static final int    FOOTMAN_HP          = 60;   // footman base health
+
+    private int                 numFriendly;
+    private int                 numEnemy;
+    private String              formation;
+    private int                 xExtent;
+    private int                 yExtent;
+    private long                seed;
+    private int[]               x;                      // positions of every unit, friendly first
+    private int[]               y;
+
+    // formation is one of line, block or scatter; an extent of 0 is picked to fit the armies
+    public ScenarioGenerator(int numFriendly, int numEnemy, String formation, int xExtent, int yExtent, long seed) {
+        this.numFriendly = numFriendly;
+        this.numEnemy = numEnemy;
+        this.formation = formation;
+        this.seed = seed;
+
+        // footmen stand on every other row in a line, so leave room for two lines and a gap between them
+        int most = Math.max(numFriendly, numEnemy);
+        int rows = Math.max(8, (int) Math.ceil(Math.sqrt(2 * most)));
+        int columns = (most + rows - 1) / rows;
+        this.xExtent = xExtent > 0 ? xExtent : Math.max(MIN_X_EXTENT, 4 * columns + 12);
+        this.yExtent = yExtent > 0 ? yExtent : Math.max(MIN_Y_EXTENT, 2 * rows + 1);
+    }
+
+    public int getXExtent() { return xExtent; }
+
+    public int getYExtent() { return yExtent; }
+
+    // writes the scenario to out, with everything but the units copied from template
+    public void write(File template, File out) throws Exception {
+        place();
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(template);
+        Element root = doc.getDocumentElement();
+        root.setAttribute("xExtent", Integer.toString(xExtent));
+        root.setAttribute("yExtent", Integer.toString(yExtent));
+        root.setAttribute("nextTargetID", Integer.toString(numFriendly + numEnemy));
+
+        List<Element> players = CombatSimulator.children(root, "player");
+        if(players.size() != 2) throw new IllegalArgumentException(template + " does not have two players");
+        for(Element player: players) {
+            int playerID = CombatSimulator.getInt(player, "ID");
+            for(Element u: CombatSimulator.children(player, "unit")) player.removeChild(u);
+
+            // new units go where the old ones were, right after the player ID
+            List<Element> templates = CombatSimulator.children(player, "template");
+            Node before = templates.isEmpty() ? null : templates.get(0);
+            String templateID = footmanTemplate(player);
+            int first = playerID == 0 ? 0 : numFriendly;
+            int count = playerID == 0 ? numFriendly : numEnemy;
+            for(int i = first; i < first + count; i++)
+                player.insertBefore(unit(doc, i, templateID), before);
+        }
+
+        stripBlanks(root);                              // so the output is indented from scratch
+        Transformer t = TransformerFactory.newInstance().newTransformer();
+        t.setOutputProperty(OutputKeys.INDENT, "yes");
+        t.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+        t.setOutputProperty(OutputKeys.STANDALONE, "yes");
+        t.transform(new DOMSource(doc), new StreamResult(out));
+    }
+
+    // picks a tile for every unit according to the formation, erroring out if they do not fit
+    private void place() {
+        x = new int[numFriendly + numEnemy];
+        y = new int[numFriendly + numEnemy];
+        if(formation.equals("line")) {
+            int rows = (yExtent - 1) / 2;              // every other row, leaving the edges free
+            line(0, numFriendly, rows, xExtent / 3, -1);
+            line(numFriendly, numEnemy, rows, xExtent - 1 - xExtent / 3, 1);
+        } else if(formation.equals("block")) {
+            block(0, numFriendly, xExtent / 3, -1);
+            block(numFriendly, numEnemy, xExtent - 1 - xExtent / 3, 1);
+        } else if(formation.equals("scatter")) {
+            Random rng = new Random(seed);
+            boolean[] taken = new boolean[xExtent * yExtent];
+            scatter(0, numFriendly, 0, xExtent / 2, taken, rng);
+            scatter(numFriendly, numEnemy, xExtent - xExtent / 2, xExtent, taken, rng);
+        } else {
+            throw new IllegalArgumentException("Unknown formation " + formation);
+        }
+
+        for(int i = 0; i < x.length; i++)
+            if(x[i] < 0 || y[i] < 0 || x[i] >= xExtent || y[i] >= yExtent)
+                throw new IllegalArgumentException(String.format("%d vs %d footmen do not fit a %dx%d map in %s formation",
+                        numFriendly, numEnemy, xExtent, yExtent, formation));
+    }
+
+    // columns of footmen on every other row, the first at front and the others behind it in direction back
+    private void line(int first, int count, int rows, int front, int back) {
+        for(int i = 0; i < count; i++) {
+            x[first + i] = front + back * (i / rows);
+            y[first + i] = 1 + 2 * (i % rows);
+        }
+    }
+
+    // a square of footmen on adjacent tiles, centered vertically, growing from front in direction back
+    private void block(int first, int count, int front, int back) {
+        int rows = Math.min(yExtent, (int) Math.ceil(Math.sqrt(count)));
+        int top = (yExtent - rows) / 2;
+        for(int i = 0; i < count; i++) {
+            x[first + i] = front + back * (i / rows);
+            y[first + i] = top + i % rows;
+        }
+    }
+
+    // footmen on random free tiles with from <= x < to
+    private void scatter(int first, int count, int from, int to, boolean[] taken, Random rng) {
+        if(count > (to - from) * yExtent) {            // leave it to place() to report
+            for(int i = 0; i < count; i++) x[first + i] = -1;
+            return;
+        }
+        for(int i = 0; i < count; i++) {
+            int tx, ty;
+            do {
+                tx = from + rng.nextInt(to - from);
+                ty = rng.nextInt(yExtent);
+            } while(taken[ty * xExtent + tx]);
+            taken[ty * xExtent + tx] = true;
+            x[first + i] = tx;
+            y[first + i] = ty;
+        }
+    }
+
+    private Element unit(Document doc, int i, String templateID) {
+        Element u = doc.createElement("unit");
+        append(doc, u, "ID", Integer.toString(i));
+        append(doc, u, "currentHealth", Integer.toString(FOOTMAN_HP));
+        append(doc, u, "xPosition", Integer.toString(x[i]));
+        append(doc, u, "yPosition", Integer.toString(y[i]));
+        append(doc, u, "templateID", templateID);
+        append(doc, u, "cargoAmount", "0");
+        append(doc, u, "progressAmount", "0");
+        return u;
+    }
+
+    // removes the whitespace between elements left over from the template's formatting
+    private static void stripBlanks(Node n) {
+        NodeList nodes = n.getChildNodes();
+        for(int i = nodes.getLength() - 1; i >= 0; i--) {
+            Node c = nodes.item(i);
+            if(c.getNodeType() == Node.TEXT_NODE && c.getTextContent().trim().isEmpty()) n.removeChild(c);
+            else stripBlanks(c);
+        }
+    }
+
+    // returns the ID of the player's Footman template
+    private static String footmanTemplate(Element player) {
+        for(Element t: CombatSimulator.children(player, "template"))
+            if(CombatSimulator.getText(t, "name").equals("Footman")) return CombatSimulator.getText(t, "ID");
+        throw new IllegalArgumentException("Player " + CombatSimulator.getText(player, "ID") + " has no Footman template");
+    }
+
+    private static void append(Document doc, Element parent, String tag, String value) {
+        Element e = doc.createElement(tag);
+        e.setTextContent(value);
+        parent.appendChild(e);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3) printUsage();
+
+        int friendly = 0;
+        int enemy = 0;
+        String formation = args.length > 3 ? args[3] : "line";
+        int xExtent = 0;
+        int yExtent = 0;
+        long seed = 12345L;
+        try {
+            friendly = Integer.parseInt(args[1]);
+            enemy = Integer.parseInt(args[2]);
+            if(args.length > 4) xExtent = Integer.parseInt(args[4]);
+            if(args.length > 5) yExtent = Integer.parseInt(args[5]);
+            if(args.length > 6) seed = Long.parseLong(args[6]);
+        } catch(NumberFormatException e) {
+            e.printStackTrace();
+            printUsage();
+        }
+        if(friendly < 1 || enemy < 1 || xExtent < 0 || yExtent < 0) printUsage();
+        File template = new File(args.length > 7 ? args[7] : DEFAULT_TEMPLATE);
+
+        ScenarioGenerator gen = new ScenarioGenerator(friendly, enemy, formation, xExtent, yExtent, seed);
+        try {
+            gen.write(template, new File(args[0]));
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.out.printf("Wrote %d vs %d footmen on a %dx%d map to %s\n",
+                friendly, enemy, gen.getXExtent(), gen.getYExtent(), args[0]);
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: ScenarioGenerator [out] [friendly] [enemy] [formation] [xExtent] [yExtent] [seed] [template]");
+        System.out.println("\tout: map file to write, e.g. rl_50fv50f.xml");
+        System.out.println("\tfriendly: number of friendly footmen (must be > 0)");
+        System.out.println("\tenemy: number of enemy footmen (must be > 0)");
+        System.out.println("\tformation: line, block or scatter (default: line)");
+        System.out.println("\txExtent, yExtent: map size, 0 to fit the armies (default: 0)");
+        System.out.println("\tseed: random seed for the scatter formation (default: 12345)");
+        System.out.println("\ttemplate: map to copy players and templates from (default: " + DEFAULT_TEMPLATE + ")");
+        System.exit(1);
+    }
+}
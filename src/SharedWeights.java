@@ -0,0 +1,42 @@
+//
+// SharedWeights.java
+//
+// Weight vector shared by parallel training workers
+// - Lock-free: each weight is stored as float bits in an AtomicIntegerArray and updated with CAS
+// - Workers read a copy before scoring and add back the change their step made (Hogwild-style)
+//
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SharedWeights {
+
+    private AtomicIntegerArray  bits;                   // float bits of each weight
+
+    public SharedWeights(float[] initial) {
+        bits = new AtomicIntegerArray(initial.length);
+        for(int i = 0; i < initial.length; i++)
+            bits.set(i, Float.floatToIntBits(initial[i]));
+    }
+
+    public int size() { return bits.length(); }
+
+    public float get(int i) { return Float.intBitsToFloat(bits.get(i)); }
+
+    // copies the current weights into out
+    public void read(float[] out) {
+        for(int i = 0; i < out.length; i++)
+            out[i] = get(i);
+    }
+
+    // atomically adds delta[i] to each weight, retrying when another worker got there first
+    public void add(float[] delta) {
+        for(int i = 0; i < delta.length; i++) {
+            if(delta[i] == 0f) continue;
+            while(true) {
+                int old = bits.get(i);
+                int updated = Float.floatToIntBits(Float.intBitsToFloat(old) + delta[i]);
+                if(bits.compareAndSet(i, old, updated)) break;
+            }
+        }
+    }
+}
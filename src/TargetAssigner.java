@@ -0,0 +1,253 @@
+//
+// TargetAssigner.java
+//
+// Joint assignment of targets to friendly footmen with an auction over the F x E Q matrix
+// - Every enemy offers cap attacker slots; the k-th slot of E is worth Q(F, E) with k attackers on E,
+//   so the number of attackers feature reflects the final assignment instead of a half-filled one
+// - Slots of an enemy are filled in order: a footman may outbid the holder of a taken slot or take the
+//   lowest free one, so the k-th slot always has k attackers ahead of it, as if footmen chose one by one
+// - Footmen that already have a target (e.g. exploring ones) use up slots of that target, so no enemy
+//   ends up with more than cap attackers in all
+// - The cap is raised when there are more footmen than free slots, so every footman gets a target
+// - Last step's targets seed the auction (warm start), so re-solving after a small change only takes a
+//   few bids; prices always start at 0, since prices left on slots that end up free would break eps-optimality
+// - Bidding stops once every footman holds a slot within eps of the best one open to it, or when the
+//   time budget runs out, after which the footmen still bidding take their best free slot greedily
+//
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TargetAssigner {
+
+    private static final int    ATTACKERS       = 4;    // index of the number of attackers feature
+    private static final int    MAX_BIDS        = 1000; // bids per footman before giving up on an exact solve
+
+    private int                 cap;                    // attackers allowed per enemy
+    private float               eps;                    // bid increment of the last solve
+
+    // scratch space reused between calls
+    private float[]             base;                   // F x E Q scores with nobody attacking
+    private float[]             offset;                 // attackers each enemy already has, by enemy slot
+    private float[]             prices;                 // price of each enemy slot
+    private int[]               owner;                  // friendly slot holding each enemy slot, -1 if free
+    private int[]               filled;                 // taken slots of each enemy, which are always its first ones
+    private int[]               free;                   // slots each enemy has left after the attackers it already has
+    private int[]               assigned;               // enemy slot held by each friendly footman, -1 if none
+    private int[]               queue;                  // friendly footmen still bidding
+    private float[]             grid;                   // features of every pair, column-major
+    private QScorer             scorer;
+
+    public TargetAssigner(int cap) {
+        this.cap = cap;
+        base = new float[0];
+        offset = new float[0];
+        prices = new float[0];
+        owner = new int[0];
+        filled = new int[0];
+        free = new int[0];
+        assigned = new int[0];
+        queue = new int[0];
+        grid = new float[0];
+        scorer = QScorer.create();
+    }
+
+    // sets a target for every friendly footman in qls that does not already have one
+    // footmen that already have a target (e.g. exploring ones) count towards their target's attackers and cap
+    // last is the previous state, whose targets seed the auction, or null
+    // deadline is the System.nanoTime() to stop bidding at, 0 for none
+    // returns false if bidding was cut short by the deadline
+    public boolean assign(QLState qls, float[] weights, QLState last, long deadline) {
+        List<QLUnit> friendly = qls.getFriendly();
+        List<QLUnit> enemy = qls.getEnemy();
+        int numF = friendly.size();
+        int numE = enemy.size();
+        if(numE == 0) return true;
+
+        int bidders = 0;
+        for(QLUnit f: friendly)
+            if(qls.getTargetFor(f.getID()) < 0) bidders++;
+        if(bidders == 0) return true;
+
+        ensureCapacity(numF, numE, 0);
+        for(int es = 0; es < numE; es++)
+            offset[es] = qls.getNumAttackersFor(enemy.get(es).getID());
+
+        // raise the cap until the free slots are enough for every bidder
+        int slots = cap;
+        while(countFree(numE, slots) < bidders) slots++;
+        int objects = numE * slots;
+        ensureCapacity(numF, numE, objects);
+
+        // score every pair once with nobody attacking, the slot adds w4 per attacker ahead of it
+        int pairs = numF * numE;
+        qls.getFeatureGrid(grid);
+        Arrays.fill(grid, ATTACKERS * pairs, (ATTACKERS + 1) * pairs, 0f);
+        scorer.score(weights, grid, pairs, pairs, base);
+        float low = Float.POSITIVE_INFINITY;
+        float high = Float.NEGATIVE_INFINITY;
+        for(int p = 0; p < pairs; p++) {
+            low = Math.min(low, base[p]);
+            high = Math.max(high, base[p]);
+        }
+        float w4 = weights[ATTACKERS];
+        eps = Math.max(1e-6f, (high - low + Math.abs(w4) * slots) / (10f * (bidders + 1)));
+
+        for(int es = 0; es < numE; es++) {
+            filled[es] = 0;
+            free[es] = Math.max(0, slots - (int) offset[es]);
+        }
+        Arrays.fill(prices, 0, objects, 0f);
+        Arrays.fill(owner, 0, objects, -1);
+
+        // seed each footman with last step's target if that is still within eps of its best choice
+        int queued = 0;
+        for(int fs = 0; fs < numF; fs++) {
+            assigned[fs] = -1;
+            int fid = friendly.get(fs).getID();
+            if(qls.getTargetFor(fid) >= 0) continue;
+
+            int lastTarget = last == null ? -1 : last.getTargetFor(fid);
+            int es = lastTarget < 0 ? -1 : qls.getESlot(lastTarget);
+            if(es >= 0 && filled[es] < free[es]) {
+                int o = es * slots + filled[es];        // lowest free slot of the old target
+                if(net(fs, o, numE, slots, w4) >= bestNet(fs, numE, slots, w4) - eps) {
+                    take(fs, o, slots);
+                    continue;
+                }
+            }
+            queue[queued++] = fs;
+        }
+
+        // seeding later footmen opens higher slots, which may now beat an earlier seed; if any seed is no
+        // longer within eps of its best choice, start cold instead
+        if(queued < bidders && !seedsHold(numF, numE, slots, w4)) {
+            queued = 0;
+            for(int es = 0; es < numE; es++) filled[es] = 0;
+            Arrays.fill(owner, 0, objects, -1);
+            for(int fs = 0; fs < numF; fs++) {
+                assigned[fs] = -1;
+                if(qls.getTargetFor(friendly.get(fs).getID()) < 0) queue[queued++] = fs;
+            }
+        }
+
+        // auction: unassigned footmen bid for their best slot, outbidding its holder
+        int bids = 0;
+        boolean inTime = true;
+        while(queued > 0 && bids++ < MAX_BIDS * bidders) {
+            if(deadline != 0 && System.nanoTime() >= deadline) {
+                inTime = false;
+                break;
+            }
+            int fs = queue[--queued];
+            int best = -1;
+            float bestNet = Float.NEGATIVE_INFINITY;
+            float secondNet = Float.NEGATIVE_INFINITY;
+            for(int o = 0; o < objects; o++) {
+                if(!isOpen(o, slots)) continue;
+                float n = net(fs, o, numE, slots, w4);
+                if(n > bestNet) {
+                    secondNet = bestNet;
+                    bestNet = n;
+                    best = o;
+                } else if(n > secondNet) {
+                    secondNet = n;
+                }
+            }
+
+            float increment = secondNet == Float.NEGATIVE_INFINITY ? eps : bestNet - secondNet + eps;
+            prices[best] += increment;
+            if(owner[best] >= 0) {                      // evict the old holder, it bids again
+                assigned[owner[best]] = -1;
+                queue[queued++] = owner[best];
+            }
+            take(fs, best, slots);
+        }
+
+        // anyone left after MAX_BIDS rounds or the deadline takes the best free slot outright; there are at least
+        // as many free slots as bidders, so one is always left
+        while(queued > 0) {
+            int fs = queue[--queued];
+            int best = -1;
+            for(int es = 0; es < numE; es++) {
+                if(filled[es] == free[es]) continue;
+                int o = es * slots + filled[es];
+                if(best < 0 || net(fs, o, numE, slots, w4) > net(fs, best, numE, slots, w4)) best = o;
+            }
+            take(fs, best, slots);
+        }
+
+        for(int fs = 0; fs < numF; fs++)
+            if(assigned[fs] >= 0)
+                qls.setTarget(friendly.get(fs).getID(), enemy.get(assigned[fs] / slots).getID());
+        return inTime;
+    }
+
+    // returns the bid increment of the last solve; the total Q score of its assignment is within
+    // bidders * eps of the best one, unless bidding was cut short
+    float getEpsilon() { return eps; }
+
+    // number of free slots over all enemies if each allows slots attackers
+    private int countFree(int numE, int slots) {
+        int total = 0;
+        for(int es = 0; es < numE; es++) total += Math.max(0, slots - (int) offset[es]);
+        return total;
+    }
+
+    // value of slot o to friendly footman fs minus its price
+    private float net(int fs, int o, int numE, int slots, float w4) {
+        int es = o / slots;
+        int k = o % slots;
+        return base[fs * numE + es] + w4 * (offset[es] + k) - prices[o];
+    }
+
+    // best net value of the slots open to fs
+    private float bestNet(int fs, int numE, int slots, float w4) {
+        float best = Float.NEGATIVE_INFINITY;
+        for(int o = 0; o < numE * slots; o++)
+            if(isOpen(o, slots)) best = Math.max(best, net(fs, o, numE, slots, w4));
+        return best;
+    }
+
+    // true if every footman holding a slot is within eps of the best slot open to it
+    private boolean seedsHold(int numF, int numE, int slots, float w4) {
+        for(int fs = 0; fs < numF; fs++)
+            if(assigned[fs] >= 0 && net(fs, assigned[fs], numE, slots, w4) < bestNet(fs, numE, slots, w4) - eps)
+                return false;
+        return true;
+    }
+
+    // true if slot o can be bid on: it is taken, or it is the lowest free slot of its enemy
+    private boolean isOpen(int o, int slots) {
+        int es = o / slots;
+        int k = o % slots;
+        return k <= filled[es] && k < free[es];
+    }
+
+    // gives slot o to friendly footman fs, whose holder if any must already have been evicted
+    private void take(int fs, int o, int slots) {
+        if(owner[o] < 0) filled[o / slots]++;           // o was the lowest free slot
+        owner[o] = fs;
+        assigned[fs] = o;
+    }
+
+    private void ensureCapacity(int numF, int numE, int objects) {
+        if(base.length < numF * numE) {
+            base = new float[numF * numE];
+            grid = new float[QLState.NUM_FEATURES * numF * numE];
+        }
+        if(offset.length < numE) {
+            offset = new float[numE];
+            filled = new int[numE];
+            free = new int[numE];
+        }
+        if(prices.length < objects) {
+            prices = new float[objects];
+            owner = new int[objects];
+        }
+        if(assigned.length < numF) {
+            assigned = new int[numF];
+            queue = new int[numF];
+        }
+    }
+}
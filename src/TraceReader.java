@@ -0,0 +1,96 @@
+//
+// TraceReader.java
+//
+// Streams the records of a trace file written by TraceWriter
+// - The file is memory-mapped CHUNK_BYTES at a time, so traces larger than memory or than a
+//   single mapping can be read without copying them onto the heap
+// - Records are read in place: next() moves to the following record and the getters read its fields
+//
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class TraceReader {
+
+    private static final int    CHUNK_BYTES     = 64 << 20;    // rounded down to whole records
+
+    private RandomAccessFile    file;
+    private FileChannel         channel;
+    private int                 numFeatures;
+    private int                 recordBytes;
+    private long                position;               // file offset of the next chunk
+    private MappedByteBuffer    chunk;
+    private int                 base;                   // offset of the current record in the chunk, -1 before the first
+
+    public TraceReader(File trace) throws IOException {
+        file = new RandomAccessFile(trace, "r");
+        channel = file.getChannel();
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), TraceWriter.HEADER_BYTES));
+        if(header.remaining() < TraceWriter.HEADER_BYTES || header.getInt() != TraceWriter.MAGIC) {
+            close();
+            throw new IOException(trace + " is not a trace");
+        }
+        int version = header.getInt();
+        if(version != TraceWriter.VERSION) {
+            close();
+            throw new IOException("Unsupported trace version " + version);
+        }
+        numFeatures = header.getInt();
+        recordBytes = TraceWriter.recordBytes(numFeatures);
+        position = TraceWriter.HEADER_BYTES;
+    }
+
+    public int getNumFeatures() { return numFeatures; }
+
+    // moves to the next record, returns false at the end of the file (a partly written last record is skipped)
+    public boolean next() throws IOException {
+        if(chunk != null && base + 2 * recordBytes <= chunk.limit()) {
+            base += recordBytes;
+            return true;
+        }
+
+        long remaining = channel.size() - position;
+        long records = Math.min(remaining / recordBytes, CHUNK_BYTES / recordBytes);
+        if(records == 0) return false;
+        chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, records * recordBytes);
+        position += records * recordBytes;
+        base = 0;
+        return true;
+    }
+
+    public int getEpisode() { return chunk.getInt(base); }
+
+    public int getStep() { return chunk.getInt(base + 4); }
+
+    public int getFriendly() { return chunk.getInt(base + 8); }
+
+    public int getTarget() { return chunk.getInt(base + 12); }
+
+    public int getNextTarget() { return chunk.getInt(base + 16); }
+
+    public float getDiscount() { return chunk.getFloat(base + 20); }
+
+    // copies the reward parts into parts
+    public void getRewardParts(float[] parts) {
+        for(int i = 0; i < TraceWriter.REWARD_PARTS; i++) parts[i] = chunk.getFloat(base + 24 + 4 * i);
+    }
+
+    // copies the features of the transition into features and next, and returns its reward
+    public float get(float[] features, float[] next) {
+        int offset = base + 4 * TraceWriter.PREFIX_FIELDS;
+        for(int i = 0; i < numFeatures; i++) features[i] = chunk.getFloat(offset + 4 * i);
+        offset += 4 * numFeatures;
+        float reward = chunk.getFloat(offset);
+        offset += 4;
+        for(int i = 0; i < numFeatures; i++) next[i] = chunk.getFloat(offset + 4 * i);
+        return reward;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
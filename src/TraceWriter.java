@@ -0,0 +1,109 @@
+//
+// TraceWriter.java
+//
+// Writes the transitions a QLearningAgent learns from to compact binary trace files
+// - Layout (big-endian): magic, version, number of features, then one fixed-size record per transition
+// - A record is the episode, step, friendly footman and its target, the target chosen in the next state
+//   (-1 if the footman died), the discount of the next state's Q score, the reward decomposed into its
+//   REWARD_PARTS parts, then the same features, reward, next features layout as ReplayBuffer
+// - A new file is started every EPISODES_PER_FILE training episodes, named after its first episode
+//   (trace-00000100.qlt), so files sort in episode order; a run resumed from a checkpoint appends to
+//   the file an earlier run left for the same episodes, after cutting off any record left half written
+//
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class TraceWriter {
+
+    public static final int     MAGIC               = 0x514C5452;   // "QLTR"
+    public static final int     VERSION             = 1;
+    public static final int     HEADER_BYTES        = 3 * 4;
+    public static final int     REWARD_PARTS        = 5;    // step cost, damage dealt, damage taken, kill, death
+    public static final int     PREFIX_FIELDS       = 6 + REWARD_PARTS;
+    public static final String  SUFFIX              = ".qlt";
+
+    private static final int    EPISODES_PER_FILE   = 100;
+
+    private File                directory;
+    private int                 numFeatures;
+    private OutputStream        out;                    // current file, null until the first record
+    private int                 fileEpisode;            // first episode of the current file
+    private ByteBuffer          record;                 // reused for every record
+
+    public TraceWriter(File directory, int numFeatures) {
+        this.directory = directory;
+        this.numFeatures = numFeatures;
+        record = ByteBuffer.allocate(recordBytes(numFeatures));
+    }
+
+    // number of bytes a record takes up in a trace of numFeatures features
+    public static int recordBytes(int numFeatures) {
+        return 4 * (PREFIX_FIELDS + 2 * numFeatures + 1);
+    }
+
+    public void write(int episode, int step, int fid, int tid, int nextTarget, float discount, float[] parts,
+                      float reward, float[] features, float[] next) throws IOException {
+        if(out == null || episode >= fileEpisode + EPISODES_PER_FILE) open(episode);
+
+        record.clear();
+        record.putInt(episode);
+        record.putInt(step);
+        record.putInt(fid);
+        record.putInt(tid);
+        record.putInt(nextTarget);
+        record.putFloat(discount);
+        for(int i = 0; i < REWARD_PARTS; i++) record.putFloat(parts[i]);
+        for(int i = 0; i < numFeatures; i++) record.putFloat(features[i]);
+        record.putFloat(reward);
+        for(int i = 0; i < numFeatures; i++) record.putFloat(next[i]);
+        out.write(record.array(), 0, record.position());
+    }
+
+    public void flush() throws IOException {
+        if(out != null) out.flush();
+    }
+
+    public void close() throws IOException {
+        if(out != null) out.close();
+        out = null;
+    }
+
+    // closes the current file and opens the one holding episode, appending to it if it exists
+    private void open(int episode) throws IOException {
+        close();
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create trace directory " + directory);
+        fileEpisode = episode - episode % EPISODES_PER_FILE;
+        File file = new File(directory, String.format("trace-%08d%s", fileEpisode, SUFFIX));
+        boolean append = file.length() > 0;
+        if(append) trim(file);
+        out = new BufferedOutputStream(new FileOutputStream(file, append), 1 << 16);
+        if(append) return;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(numFeatures);
+        out.write(header.array());
+    }
+
+    // checks that file holds records of the same layout and cuts it back to whole records
+    private void trim(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(raf.length() < HEADER_BYTES || raf.readInt() != MAGIC || raf.readInt() != VERSION
+                    || raf.readInt() != numFeatures)
+                throw new IOException(file + " is not a trace of " + numFeatures + " features");
+            long records = (raf.length() - HEADER_BYTES) / record.capacity();
+            raf.setLength(HEADER_BYTES + records * record.capacity());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+//
+// TrainingSchedule.java
+//
+// Decides how QLearningAgent alternates training and evaluation, and when it is done
+// - Fixed schedule: trainingEps training episodes, then evaluationEps evaluation episodes, with constant
+//   epsilon and learning rate, until the agent's episode budget runs out
+// - Adaptive schedule additionally:
+//   - decays epsilon and the learning rate after every training block, down to a floor
+//   - tracks the norm of the weight change over each training block, relative to the norm of the weights since
+//     normalization rescales them, and skips evaluation when they barely moved since the last evaluated block
+//   - keeps a 95% confidence interval on the reward of each evaluation block and of the last WINDOW blocks,
+//     and shortens evaluation down to MIN_EVAL_EPS episodes while those intervals are tight
+//   - stops early once the weights have settled for PATIENCE blocks and the rolling reward is stable
+//
+
+import java.util.Arrays;
+
+public class TrainingSchedule {
+
+    private static final int    MIN_EVAL_EPS        = 2;        // shortest adaptive evaluation block
+    private static final float  EPSILON_DECAY       = 0.98f;    // per training block
+    private static final float  MIN_EPSILON         = 0.002f;
+    private static final float  LEARNING_RATE_DECAY = 0.995f;   // per training block
+    private static final float  MIN_LEARNING_RATE   = 0.00001f;
+    private static final int    WINDOW              = 5;        // evaluation blocks in the rolling reward
+    private static final float  Z                   = 1.96f;    // 95% confidence
+    private static final float  TOLERANCE           = 0.05f;    // interval half-width relative to the mean reward
+    private static final float  SKIP_DELTA          = 1e-3f;    // relative weight change small enough to skip evaluation
+    private static final float  CONVERGED_DELTA     = 1e-2f;    // relative weight change small enough to count as settled
+    private static final int    PATIENCE            = 3;        // settled blocks in a row before stopping
+
+    private boolean             adaptive;
+    private int                 trainingEps;
+    private int                 fullEvaluationEps;      // length of an evaluation block when results are not stable
+    private float               epsilon;
+    private float               learningRate;
+    private int                 evaluationEps;          // length of the next evaluation block
+
+    // weight change over training
+    private float[]             blockStart;             // weights at the start of the training block
+    private float[]             lastEvaluated;          // weights at the last evaluated block
+    private float               delta;                  // relative weight change over the last training block
+    private int                 settled;                // training blocks in a row with delta < CONVERGED_DELTA
+
+    // rewards of the current evaluation block and means of the last WINDOW blocks
+    private float[]             rewards;
+    private int                 numRewards;
+    private float[]             means;
+    private int                 numMeans;
+    private float               blockHalfWidth;         // confidence interval of the last evaluation block
+    private float               rollingMean;
+    private float               rollingHalfWidth;
+    private boolean             converged;
+
+    public TrainingSchedule(boolean adaptive, float epsilon, float learningRate, int trainingEps, int evaluationEps) {
+        this.adaptive = adaptive;
+        this.epsilon = epsilon;
+        this.learningRate = learningRate;
+        this.trainingEps = trainingEps;
+        this.evaluationEps = evaluationEps;
+        fullEvaluationEps = evaluationEps;
+        rewards = new float[evaluationEps];
+        means = new float[WINDOW];
+    }
+
+    public boolean isAdaptive() { return adaptive; }
+
+    public float getEpsilon() { return epsilon; }
+
+    public float getLearningRate() { return learningRate; }
+
+    public int getTrainingEps() { return trainingEps; }
+
+    public int getEvaluationEps() { return fullEvaluationEps; }
+
+    public boolean isConverged() { return converged; }
+
+    public float getBlockHalfWidth() { return blockHalfWidth; }
+
+    public float getRollingMean() { return rollingMean; }
+
+    public float getRollingHalfWidth() { return rollingHalfWidth; }
+
+    // picks up a schedule saved in a checkpoint, e.g. the decayed epsilon and learning rate
+    public void resume(float epsilon, float learningRate) {
+        if(!adaptive) return;
+        this.epsilon = epsilon;
+        this.learningRate = learningRate;
+    }
+
+    // marks the start of a training block with the current weights
+    public void startTraining(float[] weights) {
+        if(blockStart == null) blockStart = weights.clone();
+        else System.arraycopy(weights, 0, blockStart, 0, weights.length);
+        if(lastEvaluated == null) lastEvaluated = weights.clone();
+    }
+
+    // ends a training block, returns the number of evaluation episodes to play next, 0 to skip evaluation
+    public int endTraining(float[] weights) {
+        numRewards = 0;                                 // whatever the mode, the next block starts a fresh buffer
+        if(!adaptive) return fullEvaluationEps;
+
+        epsilon = Math.max(MIN_EPSILON, epsilon * EPSILON_DECAY);
+        learningRate = Math.max(MIN_LEARNING_RATE, learningRate * LEARNING_RATE_DECAY);
+
+        delta = blockStart == null ? Float.POSITIVE_INFINITY : distance(blockStart, weights);
+        settled = delta < CONVERGED_DELTA ? settled + 1 : 0;
+
+        // the policy has hardly changed since it was last evaluated, so the result would be the same
+        if(numMeans > 0 && lastEvaluated != null && distance(lastEvaluated, weights) < SKIP_DELTA) {
+            checkConverged();
+            return 0;
+        }
+
+        if(lastEvaluated == null) lastEvaluated = weights.clone();
+        else System.arraycopy(weights, 0, lastEvaluated, 0, weights.length);
+        return evaluationEps;
+    }
+
+    // number of rewards the buffer can hold without growing, which stays at evaluationEps
+    int getRewardCapacity() { return rewards.length; }
+
+    public void recordEvaluation(float reward) {
+        if(numRewards == rewards.length) rewards = Arrays.copyOf(rewards, 2 * rewards.length);
+        rewards[numRewards++] = reward;
+    }
+
+    // ends an evaluation block, updating the confidence intervals and the length of the next block
+    public void endEvaluation() {
+        if(!adaptive) return;
+
+        float mean = mean(rewards, numRewards);
+        blockHalfWidth = halfWidth(rewards, numRewards, mean);
+
+        // slide the window of block means
+        if(numMeans == WINDOW) System.arraycopy(means, 1, means, 0, --numMeans);
+        means[numMeans++] = mean;
+        rollingMean = mean(means, numMeans);
+        rollingHalfWidth = halfWidth(means, numMeans, rollingMean);
+
+        // a tight interval means fewer episodes would have told the same story
+        if(blockHalfWidth <= TOLERANCE * Math.max(1f, Math.abs(mean))) evaluationEps = Math.max(Math.min(MIN_EVAL_EPS, fullEvaluationEps), evaluationEps - 1);
+        else evaluationEps = fullEvaluationEps;
+
+        checkConverged();
+    }
+
+    private void checkConverged() {
+        converged = settled >= PATIENCE && numMeans >= Math.min(WINDOW, PATIENCE)
+                && rollingHalfWidth <= TOLERANCE * Math.max(1f, Math.abs(rollingMean));
+    }
+
+    // norm of b - a relative to the norm of b
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        float norm = 0;
+        for(int i = 0; i < a.length; i++) {
+            sum += (a[i] - b[i]) * (a[i] - b[i]);
+            norm += b[i] * b[i];
+        }
+        return norm > 0 ? (float) Math.sqrt(sum / norm) : Float.POSITIVE_INFINITY;
+    }
+
+    private static float mean(float[] values, int n) {
+        float sum = 0;
+        for(int i = 0; i < n; i++) sum += values[i];
+        return n > 0 ? sum / n : 0f;
+    }
+
+    // half-width of the normal confidence interval on the mean, infinite with fewer than two values
+    private static float halfWidth(float[] values, int n, float mean) {
+        if(n < 2) return Float.POSITIVE_INFINITY;
+        float sum = 0;
+        for(int i = 0; i < n; i++) sum += (values[i] - mean) * (values[i] - mean);
+        return Z * (float) Math.sqrt(sum / (n - 1) / n);
+    }
+}
@@ -0,0 +1,56 @@
+//
+// VectorQScorer.java
+//
+// QScorer using jdk.incubator.vector SIMD operations
+// - Scores SPECIES.length() actions at a time: for each feature, one row of the block is
+//   multiplied by the broadcast weight and added to the running sums, then a scalar tail
+// - Compiled with --add-modules jdk.incubator.vector (see vector.iml and .idea/compiler.xml),
+//   and only loaded by QScorer.create() when the JVM has that module too
+//
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorQScorer extends QScorer {
+
+    private static final VectorSpecies<Float>   SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void score(float[] weights, float[] block, int stride, int n, float[] q) {
+        int j = 0;
+        for(int upper = SPECIES.loopBound(n); j < upper; j += SPECIES.length()) {
+            FloatVector sum = FloatVector.zero(SPECIES);
+            // multiply then add rather than fma, so the sums round like the scalar scorer
+            for(int i = 0; i < weights.length; i++)
+                sum = sum.add(FloatVector.fromArray(SPECIES, block, i * stride + j).mul(weights[i]));
+            sum.intoArray(q, j);
+        }
+        for(; j < n; j++) {                             // scalar tail
+            float sum = 0;
+            for(int i = 0; i < weights.length; i++)
+                sum += weights[i] * block[i * stride + j];
+            q[j] = sum;
+        }
+    }
+
+    @Override
+    public int argMax(float[] q, int from, int to) {
+        if(from >= to) return -1;
+
+        // find the max a vector at a time, then the first index holding it
+        float max = Float.NEGATIVE_INFINITY;
+        int j = from;
+        if(to - from >= SPECIES.length()) {
+            FloatVector best = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+            for(int upper = from + SPECIES.loopBound(to - from); j < upper; j += SPECIES.length())
+                best = best.max(FloatVector.fromArray(SPECIES, q, j));
+            max = best.reduceLanes(VectorOperators.MAX);
+        }
+        for(; j < to; j++) max = Math.max(max, q[j]);
+
+        for(j = from; j < to; j++)
+            if(q[j] == max) return j;
+        return -1;                                      // only NaN scores
+    }
+}